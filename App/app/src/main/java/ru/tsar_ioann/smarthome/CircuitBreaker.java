@@ -0,0 +1,93 @@
+package ru.tsar_ioann.smarthome;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+// Stops sending requests to device which failed several times in a row, after a while lets one probe request through
+public class CircuitBreaker {
+    private static final String LOG_TAG = "CircuitBreaker";
+
+    private static final int FAILURES_TO_OPEN = 3;
+    private static final long OPEN_WINDOW_MS = 30000;
+
+    public enum State {
+        CLOSED,     // requests go as usual
+        OPEN,       // requests fail immediately
+        HALF_OPEN   // one probe request is allowed
+    }
+
+    public static class OpenException extends IOException {
+        public OpenException(String address) {
+            super("Circuit breaker is open for " + address);
+        }
+    }
+
+    private State state = State.CLOSED;
+    private String address = null;
+    private int consecutiveFailures = 0;
+    private long openedET = 0;
+    private boolean probeInProgress = false;
+
+    public synchronized State getState() {
+        if (state == State.OPEN && SystemClock.elapsedRealtime() - openedET >= OPEN_WINDOW_MS) {
+            state = State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized boolean isOpen() {
+        return getState() == State.OPEN;
+    }
+
+    // Breaker is reset when device address changes, because failures were about the old address
+    public synchronized void checkRequestAllowed(String address) throws OpenException {
+        if (!address.equals(this.address)) {
+            this.address = address;
+            reset();
+            return;
+        }
+        switch (getState()) {
+            case CLOSED:
+                return;
+            case HALF_OPEN:
+                if (!probeInProgress) {
+                    probeInProgress = true;
+                    Log.d(LOG_TAG, "Letting probe request to " + address + " through");
+                    return;
+                }
+                // fallthrough
+            case OPEN:
+            default:
+                throw new OpenException(address);
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            Log.d(LOG_TAG, "Closing circuit for " + address);
+        }
+        reset();
+    }
+
+    public synchronized void onFailure() {
+        probeInProgress = false;
+        if (state == State.HALF_OPEN || ++consecutiveFailures >= FAILURES_TO_OPEN) {
+            Log.d(LOG_TAG, "Opening circuit for " + address + " for " + OPEN_WINDOW_MS + " ms");
+            state = State.OPEN;
+            openedET = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // Cancelled request tells nothing about device, but the probe slot should be freed
+    public synchronized void onCancelled() {
+        probeInProgress = false;
+    }
+
+    public synchronized void reset() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInProgress = false;
+    }
+}
@@ -1,14 +1,18 @@
 package ru.tsar_ioann.smarthome;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.res.Resources;
 import android.net.Network;
 
+import java.io.File;
+
 public class CommonData {
     private final Activity activity;
     private final Wifi wifi;
     private final DevicesList devices;
     private final FirmwareUpdater firmwareUpdater;
+    private final DiscoveryService discoveryService;
     private ScreenLauncher screenLauncher;
 
     // Used when adding new device
@@ -20,7 +24,11 @@ public class CommonData {
         this.activity = activity;
         this.wifi = wifi;
         this.devices = devices;
-        firmwareUpdater = new FirmwareUpdater();
+        firmwareUpdater = new FirmwareUpdater(
+                new File(activity.getCacheDir(), "firmware"),
+                activity.getSharedPreferences("firmware", Context.MODE_PRIVATE)
+        );
+        discoveryService = new DiscoveryService(devices);
     }
 
     public void setScreenLauncher(ScreenLauncher screenLauncher) {
@@ -55,6 +63,10 @@ public class CommonData {
         return firmwareUpdater;
     }
 
+    public DiscoveryService getDiscoveryService() {
+        return discoveryService;
+    }
+
     public ScreenLauncher getScreenLauncher() {
         return screenLauncher;
     }
@@ -22,7 +22,7 @@ public class DeviceInfo {
     public static final String HEADER_PASSWORD = "Password";
 
     public static final class Handlers {
-        public static final String GET_INFO             = "/get_info?binary&v=4";
+        public static final String GET_INFO             = "/get_info?binary&v=5";
         public static final String SETUP_WIFI           = "/setup_wifi";
         public static final String GET_SETUP_WIFI_STATE = "/get_setup_wifi_state";
         public static final String TURN_OFF_AP          = "/turn_off_ap";
@@ -31,6 +31,9 @@ public class DeviceInfo {
         public static final String UPDATE_FIRMWARE      = "/fw_update";
     }
 
+    // Bits of capabilities reported by device
+    private static final int CAPABILITY_GZIP_UPDATE = 0x01;
+
     public static final int MIN_VALUE_CHANGE_STEP = 1;
     public static final int MAX_VALUE_CHANGE_STEP = 99;
     public static final int MIN_LIGHTNESS_MICROS = 50;
@@ -90,6 +93,7 @@ public class DeviceInfo {
 
     private static final String KEY_PROTO_PREFIX = "proto-";
     private static final String KEY_FIRMWARE_PREFIX = "fw-";
+    private static final String KEY_CAPABILITIES_PREFIX = "caps-";
     private static final String KEY_MAC_PREFIX = "mac-";
     private static final String KEY_NAME_PREFIX = "name-";
     private static final String KEY_IP_PREFIX = "ip-";
@@ -100,6 +104,7 @@ public class DeviceInfo {
 
     private short protoVersion = 2;
     private short firmwareVersion = 0;
+    private int capabilities = 0;  // reported by firmwares with response format 5+
     private String macAddress = null;
     private String name = null;
     private String ipAddress = null;
@@ -109,6 +114,34 @@ public class DeviceInfo {
 
     private boolean discovered = false;
     private Listener listener = null;
+    private SetValuesCoalescer valuesCoalescer = null;
+
+    // Same listener for all discover calls, so concurrent discovers share not only request, but also parsing:
+    // mailbox calls listener once for all callers which passed it
+    private final Http.Listener discoverListener = new Http.Listener() {
+        @Override
+        public void onResponse(Http.Response response) {
+            if (response.getHttpCode() != HttpURLConnection.HTTP_OK) {
+                Log.d(LOG_TAG, "Discover failed: got bad response code " + response.getHttpCode());
+                return;
+            }
+            synchronized (DeviceInfo.this) {
+                try {
+                    updateFromBuffer(response.getBody().asByteBuffer());
+                    onDeviceUpdated();
+                    discovered = true;
+                    Log.d(LOG_TAG, "Device " + macAddress + " discovered");
+                } catch (BinaryInfoParseException e) {
+                    Log.d(LOG_TAG, "Discover failed: could not parse response: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void onError(IOException exception) {
+            Log.d(LOG_TAG, "Discover failed with exception: " + exception.getMessage());
+        }
+    };
 
     private byte inputPin;
 
@@ -145,6 +178,7 @@ public class DeviceInfo {
 
         protoVersion = (short)storage.getInt(KEY_PROTO_PREFIX + idInStorage, 2);
         firmwareVersion = (short)storage.getInt(KEY_FIRMWARE_PREFIX + idInStorage, 0);
+        capabilities = storage.getInt(KEY_CAPABILITIES_PREFIX + idInStorage, 0);
         macAddress = storage.getString(KEY_MAC_PREFIX + idInStorage, null);
         name = storage.getString(KEY_NAME_PREFIX + idInStorage, null);
         ipAddress = storage.getString(KEY_IP_PREFIX + idInStorage, null);
@@ -167,6 +201,7 @@ public class DeviceInfo {
     public void saveToStorage(SharedPreferences.Editor editor, int idInStorage) {
         editor.putInt(KEY_PROTO_PREFIX + idInStorage, protoVersion);
         editor.putInt(KEY_FIRMWARE_PREFIX + idInStorage, firmwareVersion);
+        editor.putInt(KEY_CAPABILITIES_PREFIX + idInStorage, capabilities);
         editor.putString(KEY_MAC_PREFIX + idInStorage, macAddress);
         editor.putString(KEY_NAME_PREFIX + idInStorage, name);
         editor.putString(KEY_IP_PREFIX + idInStorage, ipAddress);
@@ -184,23 +219,22 @@ public class DeviceInfo {
     }
 
     public DeviceInfo(byte[] binaryInfo) throws BinaryInfoParseException {
-        updateFromBytes(binaryInfo);
+        updateFromBuffer(ByteBuffer.wrap(binaryInfo));
     }
 
-    private void updateFromBytes(byte[] binaryInfo) throws BinaryInfoParseException {
-        ByteBuffer buffer = ByteBuffer.allocate(binaryInfo.length)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .put(binaryInfo);
+    private void updateFromBuffer(ByteBuffer buffer) throws BinaryInfoParseException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
         buffer.position(0);
 
         try {
             protoVersion = buffer.getShort();  // response format version
-            if (protoVersion != 3 && protoVersion != 4) {
+            if (protoVersion < 3 || protoVersion > 5) {
                 // older firmwares put MAC at the beginning
                 protoVersion = 2;
                 buffer.position(0);
             }
             firmwareVersion = (protoVersion >= 4) ? buffer.getShort() : 0;
+            capabilities = (protoVersion >= 5) ? buffer.get() & 0xFF : 0;
 
             byte[] macAddressBytes = new byte[6];
             buffer.get(macAddressBytes);
@@ -383,6 +417,15 @@ public class DeviceInfo {
         return firmwareVersion >= 4;
     }
 
+    // Firmwares with update over network (v4+) are built with Arduino core 2.7.x, its updater accepts gzip images.
+    // Response format 5+ reports it explicitly: device decides by the core its firmware was built with.
+    public boolean supportsCompressedFirmwareUpload() {
+        if (protoVersion >= 5) {
+            return (capabilities & CAPABILITY_GZIP_UPDATE) != 0;
+        }
+        return supportsFirmwareUpdateOverNetwork();
+    }
+
     public String getMacAddress() {
         return macAddress;
     }
@@ -423,6 +466,21 @@ public class DeviceInfo {
         return httpPassword;
     }
 
+    public DeviceMailbox getMailbox() {
+        return DeviceMailbox.get(macAddress);
+    }
+
+    public synchronized SetValuesCoalescer getValuesCoalescer() {
+        if (valuesCoalescer == null) {
+            valuesCoalescer = new SetValuesCoalescer(this);
+        }
+        return valuesCoalescer;
+    }
+
+    public boolean isOffline() {
+        return getMailbox().getCircuitBreaker().isOpen();
+    }
+
     public boolean isDiscovered() {
         return discovered;
     }
@@ -558,48 +616,28 @@ public class DeviceInfo {
         this.listener = listener;
     }
 
-    public void asyncDiscover() {
+    // Returned future finishes after device info is updated from response
+    public HttpFuture<Http.Response> asyncDiscover() {
         if (ipAddress == null) {
             Log.d(LOG_TAG, "Discover failed: IP address is not set");
-            return;
+            final HttpFuture<Http.Response> failed = new HttpFuture<>();
+            failed.fail(new IOException("IP address is not set"));
+            return failed;
         }
-        Http.asyncRequest(
+        return getMailbox().asyncRequest(
+                DeviceMailbox.Priority.BACKGROUND,
                 getHttpAddress() + Handlers.GET_INFO,
                 null,
                 Utils.createMapWithOneElement(HEADER_PASSWORD, httpPassword),
-                null,
                 5,
-                new Http.Listener() {
-                    @Override
-                    public void onResponse(Http.Response response) {
-                        if (response.getHttpCode() != HttpURLConnection.HTTP_OK) {
-                            Log.d(LOG_TAG, "Discover failed: got bad response code " + response.getHttpCode());
-                            return;
-                        }
-                        synchronized (DeviceInfo.this) {
-                            try {
-                                updateFromBytes(response.getData());
-                                onDeviceUpdated();
-                                discovered = true;
-                                Log.d(LOG_TAG, "Device " + macAddress + " discovered");
-                            } catch (BinaryInfoParseException e) {
-                                Log.d(LOG_TAG, "Discover failed: could not parse response: " + e.getMessage());
-                            }
-                        }
-                    }
-
-                    @Override
-                    public void onError(IOException exception) {
-                        Log.d(LOG_TAG, "Discover failed with exception: " + exception.getMessage());
-                    }
-                }
+                discoverListener
         );
     }
 
-    public void asyncRediscover() {
+    public HttpFuture<Http.Response> asyncRediscover() {
         setDiscovered(false);
         onDeviceUpdated();
-        asyncDiscover();
+        return asyncDiscover();
     }
 
     private void onDeviceUpdated() {
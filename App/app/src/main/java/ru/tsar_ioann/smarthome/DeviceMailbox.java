@@ -0,0 +1,428 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+// Device's web server handles only one client at a time, so all requests to one device go through its mailbox
+public class DeviceMailbox {
+    public enum Priority {
+        INTERACTIVE,  // initiated by user, goes before any background request
+        BACKGROUND
+    }
+
+    public enum Transport {
+        BLOCKING,  // keep-alive socket used from network executor thread
+        NIO        // NioHttpClient, request in progress does not hold a thread
+    }
+
+    public static final String SETTINGS_NAME = "connections";
+    public static final String SETTINGS_KEY_NON_BLOCKING = "non_blocking";
+
+    private static final Map<String, DeviceMailbox> mailboxes = new HashMap<>();  // MAC -> mailbox
+    private static volatile Transport transport = Transport.BLOCKING;
+
+    private static class Command implements Comparable<Command> {
+        private final Priority priority;
+        private final long sequenceNumber;
+        private final Runnable action;
+        private final HttpFuture<?> future;  // null for plain actions
+        private final boolean nonBlocking;   // action returns immediately, next command is run when future is done
+
+        public Command(Priority priority, long sequenceNumber, Runnable action, HttpFuture<?> future, boolean nonBlocking) {
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.action = action;
+            this.future = future;
+            this.nonBlocking = nonBlocking;
+        }
+
+        @Override
+        public int compareTo(Command other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+    private static class Subscriber {
+        private final Http.Listener listener;
+        private final HttpFuture<Http.Response> future = new HttpFuture<>();
+
+        public Subscriber(Http.Listener listener) {
+            this.listener = listener;
+        }
+    }
+
+    // Identical GET requests which are queued or in progress share one network call, which is cancelled
+    // only when all of its subscribers are cancelled. Each caller gets its own future, so cancelling it
+    // does not touch the others; a listener passed by several callers is called once.
+    private static class SharedRequest {
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private HttpFuture<Http.Response> call;
+    }
+
+    private final PriorityQueue<Command> queue = new PriorityQueue<>();
+    private final Map<String, SharedRequest> sharedRequests = new HashMap<>();  // URL and headers -> shared request
+    private final KeepAliveConnection connection = new KeepAliveConnection();
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final HedgePolicy hedgePolicy = new HedgePolicy();
+    private long nextSequenceNumber = 0;
+    private boolean busy = false;
+    private HttpFuture<?> runningFuture = null;
+    private boolean runningNonBlocking = false;
+    private Transport usedTransport = null;  // the one which may keep idle connection to device
+
+    public static DeviceMailbox get(String macAddress) {
+        synchronized (mailboxes) {
+            DeviceMailbox mailbox = mailboxes.get(macAddress);
+            if (mailbox == null) {
+                mailbox = new DeviceMailbox();
+                mailboxes.put(macAddress, mailbox);
+            }
+            return mailbox;
+        }
+    }
+
+    // Affects only requests made with asyncRequest and adaptive timeouts, blocking request() always uses keep-alive socket
+    public static void setTransport(Transport newTransport) {
+        transport = newTransport;
+    }
+
+    public static Transport getTransport() {
+        return transport;
+    }
+
+    public static void remove(String macAddress) {
+        synchronized (mailboxes) {
+            DeviceMailbox mailbox = mailboxes.remove(macAddress);
+            if (mailbox != null) {
+                mailbox.post(Priority.BACKGROUND, mailbox.connection::close);
+            }
+        }
+    }
+
+    private interface Request {
+        Http.Response run() throws IOException;
+    }
+
+    private interface Starter {
+        HttpFuture<Http.Response> start(Priority priority);
+    }
+
+    // Timeouts are adapted to measured RTT of device. Cancelling returned future removes request from queue
+    // or aborts its socket, listener is not called then.
+    public HttpFuture<Http.Response> asyncRequest(Priority priority, String url, byte[] data, Map<String, String> headers, int attempts, Http.Listener listener) {
+        if (transport == Transport.NIO) {
+            if (data == null) {
+                return asyncSharedRequest(priority, url + "\n" + headers, p -> asyncNioRequest(p, url, null, headers, attempts, null), listener);
+            }
+            return asyncNioRequest(priority, url, data, headers, attempts, listener);
+        }
+        if (data == null) {
+            return asyncSharedRequest(priority, url + "\n" + headers, p -> asyncRequest(p, () -> hedgedRequest(url, headers, attempts), null), listener);
+        }
+        return asyncRequest(priority, () -> request(url, data, headers, attempts), listener);
+    }
+
+    public HttpFuture<Http.Response> asyncRequest(Priority priority, String url, byte[] data, Map<String, String> headers, int attempts, Http.Listener listener, int connectTimeoutMs, int readTimeoutMs) {
+        return asyncRequest(priority, () -> request(url, data, headers, attempts, connectTimeoutMs, readTimeoutMs), listener);
+    }
+
+    // Body is streamed to device, so it may be much bigger than is reasonable to keep in memory
+    public HttpFuture<Http.Response> asyncUpload(Priority priority, String url, RequestBody body, Map<String, String> headers, Http.Listener listener, int connectTimeoutMs, int readTimeoutMs) {
+        return asyncRequest(priority, () -> guardedRequest(url, () -> Http.request(connection, url, body, headers, 1, connectTimeoutMs, readTimeoutMs)), listener);
+    }
+
+    private HttpFuture<Http.Response> asyncSharedRequest(Priority priority, String key, Starter starter, Http.Listener listener) {
+        final SharedRequest shared;
+        final Subscriber subscriber;
+        synchronized (this) {
+            SharedRequest existing = sharedRequests.get(key);
+            if (existing != null) {
+                shared = existing;
+            } else {
+                shared = new SharedRequest();
+                sharedRequests.put(key, shared);
+                shared.call = starter.start(priority);
+            }
+            subscriber = new Subscriber(listener);
+            shared.subscribers.add(subscriber);
+            if (existing == null) {
+                shared.call.addCallback(new HttpFuture.Callback<Http.Response>() {
+                    @Override
+                    public void onSuccess(Http.Response response) {
+                        final Set<Http.Listener> notified = Collections.newSetFromMap(new IdentityHashMap<>());
+                        for (Subscriber finished : finishShared(key, shared)) {
+                            // listener goes first, so callbacks of future see its results
+                            if (finished.listener != null && !finished.future.isDone() && notified.add(finished.listener)) {
+                                finished.listener.onResponse(response);
+                            }
+                            finished.future.complete(response);
+                        }
+                    }
+
+                    @Override
+                    public void onError(IOException exception) {
+                        final Set<Http.Listener> notified = Collections.newSetFromMap(new IdentityHashMap<>());
+                        for (Subscriber finished : finishShared(key, shared)) {
+                            if (finished.listener != null && !finished.future.isDone() && notified.add(finished.listener)) {
+                                finished.listener.onError(exception);
+                            }
+                            finished.future.fail(exception);
+                        }
+                    }
+                });
+            }
+            // user is waiting for result now, so request which is still in queue should go earlier
+            promote(shared.call, priority);
+        }
+        subscriber.future.onCancel(() -> unsubscribe(key, shared, subscriber));
+        return subscriber.future;
+    }
+
+    private synchronized List<Subscriber> finishShared(String key, SharedRequest shared) {
+        if (sharedRequests.get(key) == shared) {
+            sharedRequests.remove(key);
+        }
+        return new ArrayList<>(shared.subscribers);
+    }
+
+    private void unsubscribe(String key, SharedRequest shared, Subscriber subscriber) {
+        synchronized (this) {
+            shared.subscribers.remove(subscriber);
+            if (!shared.subscribers.isEmpty() || sharedRequests.get(key) != shared) {
+                return;
+            }
+            sharedRequests.remove(key);
+        }
+        shared.call.cancel();
+    }
+
+    private synchronized void promote(HttpFuture<?> future, Priority priority) {
+        for (Command command : queue) {
+            if (command.future == future) {
+                if (priority.compareTo(command.priority) < 0) {
+                    queue.remove(command);
+                    queue.add(new Command(priority, command.sequenceNumber, command.action, future, command.nonBlocking));
+                }
+                return;
+            }
+        }
+    }
+
+    private HttpFuture<Http.Response> asyncRequest(Priority priority, Request request, Http.Listener listener) {
+        final HttpFuture<Http.Response> future = new HttpFuture<>();
+        HttpFuture.addListener(future, listener);
+        enqueue(priority, () -> {
+            if (!startRunning(future)) {
+                return;
+            }
+            try {
+                future.complete(request.run());
+            } catch (IOException e) {
+                future.fail(e);
+            } finally {
+                finishRunning();
+            }
+        }, future, false);
+        future.onCancel(() -> cancel(future));
+        return future;
+    }
+
+    // Same guarantees as for blocking requests, but mailbox command lasts until NIO request is finished
+    private HttpFuture<Http.Response> asyncNioRequest(Priority priority, String url, byte[] data, Map<String, String> headers, int attempts, Http.Listener listener) {
+        final HttpFuture<Http.Response> future = new HttpFuture<>();
+        HttpFuture.addListener(future, listener);
+        enqueue(priority, () -> {
+            if (!startRunning(future, true)) {
+                runNextLater();
+                return;
+            }
+            try {
+                final URL req = new URL(url);
+                switchTransport(Transport.NIO, req);
+                circuitBreaker.checkRequestAllowed(req.getAuthority());
+            } catch (IOException e) {
+                future.fail(e);
+                finishRunning();
+                runNextLater();
+                return;
+            }
+
+            final HttpFuture<Http.Response> call = NioHttpClient.asyncRequest(rttEstimator, url, data, headers, attempts);
+            future.onCancel(call::cancel);
+            call.onCancel(() -> {
+                circuitBreaker.onCancelled();
+                finishRunning();
+                runNextLater();
+            });
+            call.addCallback(new HttpFuture.Callback<Http.Response>() {
+                @Override
+                public void onSuccess(Http.Response response) {
+                    circuitBreaker.onSuccess();
+                    future.complete(response);
+                    finishRunning();
+                    runNextLater();
+                }
+
+                @Override
+                public void onError(IOException exception) {
+                    circuitBreaker.onFailure();
+                    future.fail(exception);
+                    finishRunning();
+                    runNextLater();
+                }
+            });
+        }, future, true);
+        future.onCancel(() -> cancel(future));
+        return future;
+    }
+
+    private boolean startRunning(HttpFuture<?> future) {
+        return startRunning(future, false);
+    }
+
+    private synchronized boolean startRunning(HttpFuture<?> future, boolean nonBlocking) {
+        if (future.isDone()) {
+            return false;
+        }
+        runningFuture = future;
+        runningNonBlocking = nonBlocking;
+        return true;
+    }
+
+    private synchronized void finishRunning() {
+        runningFuture = null;
+    }
+
+    private synchronized boolean isRunningCancelled() {
+        return runningFuture != null && runningFuture.isDone();
+    }
+
+    // Aborting is done under lock, so it can not hit the next request on the same connection
+    private synchronized void cancel(HttpFuture<?> future) {
+        for (Command command : queue) {
+            if (command.future == future) {
+                queue.remove(command);
+                return;
+            }
+        }
+        if (runningFuture == future && !runningNonBlocking) {
+            connection.abort();  // non-blocking requests are cancelled through their own future
+        }
+    }
+
+    // Should be called only from commands posted to this mailbox
+    public Http.Response request(String url, byte[] data, Map<String, String> headers, int attempts) throws IOException {
+        return guardedRequest(url, () -> Http.request(connection, rttEstimator, url, data, headers, attempts));
+    }
+
+    // Only for idempotent GET requests
+    public Http.Response hedgedRequest(String url, Map<String, String> headers, int attempts) throws IOException {
+        return guardedRequest(url, () -> Http.hedgedRequest(connection, rttEstimator, hedgePolicy, url, headers, attempts));
+    }
+
+    public Http.Response request(String url, byte[] data, Map<String, String> headers, int attempts, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        return guardedRequest(url, () -> Http.request(connection, url, data, headers, attempts, connectTimeoutMs, readTimeoutMs));
+    }
+
+    private Http.Response guardedRequest(String url, Request request) throws IOException {
+        final URL req = new URL(url);
+        switchTransport(Transport.BLOCKING, req);
+        circuitBreaker.checkRequestAllowed(req.getAuthority());
+        try {
+            Http.Response response = request.run();
+            circuitBreaker.onSuccess();
+            return response;
+        } catch (IOException e) {
+            if (isRunningCancelled()) {
+                circuitBreaker.onCancelled();  // device is not guilty
+            } else {
+                circuitBreaker.onFailure();
+            }
+            throw e;
+        }
+    }
+
+    // For device which is known to have been away on purpose (e.g. rebooted after firmware update): failures and
+    // RTT measured before say nothing about it now
+    public void resetHealth() {
+        circuitBreaker.reset();
+        rttEstimator.reset();
+    }
+
+    // Device's web server serves one client at a time, so connection kept by one transport would stall requests
+    // made by the other: it is closed when requests switch to the other transport
+    private synchronized void switchTransport(Transport nextTransport, URL req) {
+        if (usedTransport == nextTransport) {
+            return;
+        }
+        if (usedTransport == Transport.BLOCKING) {
+            connection.close();
+        } else if (usedTransport == Transport.NIO) {
+            NioHttpClient.closeIdleConnection(req);
+        }
+        usedTransport = nextTransport;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public void post(Priority priority, Runnable action) {
+        enqueue(priority, action, null, false);
+    }
+
+    private synchronized void enqueue(Priority priority, Runnable action, HttpFuture<?> future, boolean nonBlocking) {
+        Command command = new Command(priority, nextSequenceNumber++, action, future, nonBlocking);
+        queue.add(command);
+        if (!busy) {
+            busy = true;
+            NetworkExecutor.execute(this::runNext);
+        }
+    }
+
+    // Each command is a separate executor task, so a busy device does not starve the others
+    private void runNext() {
+        Command command;
+        synchronized (this) {
+            command = queue.poll();
+            if (command == null) {
+                busy = false;
+                return;
+            }
+        }
+        if (command.nonBlocking) {
+            command.action.run();
+            return;
+        }
+        try {
+            connection.clearAborted();
+            command.action.run();
+        } finally {
+            runNextLater();
+        }
+    }
+
+    private void runNextLater() {
+        NetworkExecutor.execute(this::runNext);
+    }
+}
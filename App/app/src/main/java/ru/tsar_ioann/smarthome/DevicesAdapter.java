@@ -26,6 +26,8 @@ import ru.tsar_ioann.smarthome.screens.DeviceSettings;
 
 public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHolder>
         implements ReorderItemTouchHelper.OrderChangedListener {
+    private static final int UPLOAD_PROGRESS_TOAST_STEP = 25;
+
     private final Activity activity;
     private final DevicesList devicesList;
     private final ScreenLauncher screenLauncher;
@@ -129,9 +131,7 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHold
 
             if (settingsButtonsVisible) {
                 holder.btnUpdateFirmware.setVisibility(
-                        device.isDiscovered()
-                                && device.supportsFirmwareUpdateOverNetwork()
-                                && device.getFirmwareVersion() < firmwareUpdater.getLastFirmwareVersion()
+                        firmwareUpdater.canUpdate(device)
                             ? View.VISIBLE
                             : View.GONE
                 );
@@ -186,13 +186,23 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHold
                                         ).show();
                                         firmwareUpdater.asyncUpdateFirmware(device, new FirmwareUpdater.Listener() {
                                             @Override
-                                            public void onSuccess() {
+                                            public void onSuccess(FirmwareUpdater.UploadStats stats) {
                                                 device.asyncRediscover();
+                                                String message = Utils.tr(resources, R.string.update_uploaded_message, device.getName());
+                                                if (stats.isCompressed()) {
+                                                    message += Utils.tr(
+                                                            resources,
+                                                            R.string.update_uploaded_compressed,
+                                                            stats.getDurationMs() / 1000.0,
+                                                            stats.getEstimatedSavedMs() / 1000.0
+                                                    );
+                                                }
+                                                final String finalMessage = message;
                                                 activity.runOnUiThread(() -> {
                                                     Utils.showOkDialog(
                                                             activity,
                                                             Utils.tr(resources, R.string.update_uploaded),
-                                                            Utils.tr(resources, R.string.update_uploaded_message, device.getName()),
+                                                            finalMessage,
                                                             (dialog1, which1) -> device.asyncDiscover()
                                                     );
                                                 });
@@ -207,6 +217,18 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHold
                                                         Utils.tr(resources, messageResId)
                                                 ));
                                             }
+
+                                            @Override
+                                            public void onUploadProgress(int percent) {
+                                                if (percent % UPLOAD_PROGRESS_TOAST_STEP != 0 || percent == 0 || percent == 100) {
+                                                    return;
+                                                }
+                                                activity.runOnUiThread(() -> Toast.makeText(
+                                                        activity,
+                                                        Utils.tr(resources, R.string.update_progress, device.getName(), percent),
+                                                        Toast.LENGTH_SHORT
+                                                ).show());
+                                            }
                                         });
                                     },
                                     (dialog2, which2) -> {}
@@ -224,7 +246,6 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHold
             holder.txtDeviceMac.setText(device.getMacAddress() + " (v" + device.getFirmwareVersion() + ")");
             holder.txtDeviceIp.setText(device.getHttpAddressWithoutPrefix());
 
-            final String httpPassword = device.getHttpPassword();
             final boolean discovered = device.isDiscovered();
 
             int i = 0;
@@ -250,12 +271,9 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHold
                     @Override
                     public void onStopTrackingTouch(SeekBar seekBar) {
                         seekBar.setEnabled(false);
-                        Http.asyncRequest(
-                                device.getHttpAddress() + DeviceInfo.Handlers.SET_VALUES + "?dim" + dimId + "=" + seekBar.getProgress(),
-                                null,
-                                Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, httpPassword),
-                                null,
-                                3,
+                        device.getValuesCoalescer().asyncSetDimmerValue(
+                                dimId,
+                                seekBar.getProgress(),
                                 new Http.Listener() {
                                     @Override
                                     public void onResponse(Http.Response response) {
@@ -301,12 +319,9 @@ public class DevicesAdapter extends RecyclerView.Adapter<DevicesAdapter.ViewHold
                     public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                         CompoundButton.OnCheckedChangeListener checkedChangeListener = this;
                         buttonView.setEnabled(false);
-                        Http.asyncRequest(
-                                device.getHttpAddress() + DeviceInfo.Handlers.SET_VALUES + "?sw" + swId + "=" + (isChecked ? 1 : 0),
-                                null,
-                                Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, httpPassword),
-                                null,
-                                3,
+                        device.getValuesCoalescer().asyncSetSwitcherValue(
+                                swId,
+                                isChecked,
                                 new Http.Listener() {
                                     @Override
                                     public void onResponse(Http.Response response) {
@@ -3,6 +3,7 @@ package ru.tsar_ioann.smarthome;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -14,6 +15,7 @@ public class DevicesList implements DeviceInfo.Listener {
     private static final String KEY_COUNT = "count";
 
     private final SharedPreferences storage;
+    private final PresenceRegistry presence;
     private final List<DeviceInfo> deviceInfoList;
     private final Map<String, DeviceInfo> deviceMap;  // MAC -> device info
     private final Map<String, Integer> deviceIdsMap;  // MAC -> id in list
@@ -28,8 +30,9 @@ public class DevicesList implements DeviceInfo.Listener {
         void onDeviceUpdated(int position);
     }
 
-    public DevicesList(SharedPreferences devicesLocalStorage) {
+    public DevicesList(SharedPreferences devicesLocalStorage, PresenceRegistry presence) {
         storage = devicesLocalStorage;
+        this.presence = presence;
         deviceInfoList = new ArrayList<>();
         deviceMap = new HashMap<>();
         deviceIdsMap = new HashMap<>();
@@ -48,6 +51,15 @@ public class DevicesList implements DeviceInfo.Listener {
             final String macAddress = device.getMacAddress();
             deviceMap.put(macAddress, device);
             deviceIdsMap.put(macAddress, i);
+
+            // Device which was heard from recently is shown with cached state at once, without waiting for discover
+            if (presence.isFresh(macAddress)) {
+                device.setDiscovered(true);
+            }
+            final long rttMs = presence.getRttMs(macAddress);
+            if (rttMs >= 0) {
+                device.getMailbox().getRttEstimator().addSample(rttMs);
+            }
         }
     }
 
@@ -102,6 +114,8 @@ public class DevicesList implements DeviceInfo.Listener {
             deviceMap.remove(macAddress);
             deviceIdsMap.remove(macAddress);
             deviceInfoList.remove(deviceId.intValue());
+            DeviceMailbox.remove(macAddress);
+            presence.remove(macAddress);
 
             final SharedPreferences.Editor editor = storage.edit();
             for (int i = deviceId; i < deviceInfoList.size(); ++i) {
@@ -124,8 +138,60 @@ public class DevicesList implements DeviceInfo.Listener {
     public void rediscoverAll() {
         for (DeviceInfo device : deviceInfoList) {
             device.setDiscovered(false);
-            device.asyncDiscover();
+            if (device.isOffline()) {
+                Log.d(LOG_TAG, "Skipping rediscover of device " + device.getMacAddress() + " because it is offline");
+                continue;
+            }
+            discover(device);
+        }
+    }
+
+    // Devices which answered recently and had no failed requests since then are left as they are
+    public void rediscoverStale() {
+        int skipped = 0;
+        for (DeviceInfo device : deviceInfoList) {
+            if (device.isDiscovered() && presence.isFresh(device.getMacAddress())) {
+                ++skipped;
+                continue;
+            }
+            device.setDiscovered(false);
+            if (device.isOffline()) {
+                Log.d(LOG_TAG, "Skipping rediscover of device " + device.getMacAddress() + " because it is offline");
+                continue;
+            }
+            discover(device);
         }
+        Log.d(LOG_TAG, "Skipped rediscover of " + skipped + " fresh devices");
+    }
+
+    // Result is recorded in presence registry
+    public HttpFuture<Http.Response> discover(DeviceInfo device) {
+        final HttpFuture<Http.Response> future = device.asyncDiscover();
+        future.addCallback(new HttpFuture.Callback<Http.Response>() {
+            @Override
+            public void onSuccess(Http.Response response) {
+                if (device.isDiscovered()) {
+                    presence.onHttpAnswer(
+                            device.getMacAddress(),
+                            device.getIpAddress(),
+                            device.getPort(),
+                            device.getMailbox().getRttEstimator().getSmoothedRttMs()
+                    );
+                } else {
+                    presence.markSuspect(device.getMacAddress());
+                }
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                presence.markSuspect(device.getMacAddress());
+            }
+        });
+        return future;
+    }
+
+    public PresenceRegistry getPresence() {
+        return presence;
     }
 
     public DeviceInfo getDeviceByMacAddress(String macAddress) {
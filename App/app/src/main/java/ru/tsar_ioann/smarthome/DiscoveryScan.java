@@ -0,0 +1,103 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+// Multicast scan which sends packets often at first and then backs off exponentially: most devices answer
+// one of first packets, later ones are only for devices which missed them. When devices which should answer
+// are known, scan stops as soon as all of them have answered.
+public class DiscoveryScan {
+    private static final String LOG_TAG = "DiscoveryScan";
+
+    public static final long DEFAULT_FIRST_INTERVAL_MS = 250;
+    public static final long DEFAULT_MAX_INTERVAL_MS = 4000;
+    public static final double DEFAULT_BACKOFF_MULTIPLIER = 2.0;
+
+    public interface Listener {
+        // Called from network threads, is not called for cancelled scan
+        void onScanFinished(Set<String> missingMacAddresses);
+    }
+
+    private final int packets;
+    private final long firstIntervalMs;
+    private final long maxIntervalMs;
+    private final Listener listener;
+
+    private final Set<String> missing;  // null when devices which should answer are not known
+    private MulticastSender.Burst burst = null;
+    private boolean finished = false;
+
+    // With null expectedMacAddresses all packets are sent
+    public DiscoveryScan(Collection<String> expectedMacAddresses, int packets, long firstIntervalMs, long maxIntervalMs, Listener listener) {
+        this.packets = packets;
+        this.firstIntervalMs = firstIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.listener = listener;
+        this.missing = expectedMacAddresses != null ? new HashSet<>(expectedMacAddresses) : null;
+    }
+
+    public DiscoveryScan(Collection<String> expectedMacAddresses, int packets, Listener listener) {
+        this(expectedMacAddresses, packets, DEFAULT_FIRST_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS, listener);
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (burst != null || finished) {
+                return;
+            }
+            if (missing == null || !missing.isEmpty()) {
+                burst = MulticastSender.scheduleBurst(
+                        MulticastSender.SCAN_REQUEST,
+                        packets,
+                        firstIntervalMs,
+                        maxIntervalMs,
+                        DEFAULT_BACKOFF_MULTIPLIER,
+                        sentPackets -> finish(sentPackets + " packets sent")
+                );
+                return;
+            }
+        }
+        finish("no devices to wait for");
+    }
+
+    public void onDeviceAnswered(String macAddress) {
+        synchronized (this) {
+            if (missing == null || finished || !missing.remove(macAddress) || !missing.isEmpty()) {
+                return;
+            }
+            if (burst != null) {
+                burst.cancel();
+            }
+        }
+        finish("all devices answered");
+    }
+
+    public void cancel() {
+        synchronized (this) {
+            finished = true;
+            if (burst != null) {
+                burst.cancel();
+            }
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private void finish(String reason) {
+        final Set<String> missingNow;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            missingNow = missing != null ? new HashSet<>(missing) : new HashSet<>();
+        }
+        Log.d(LOG_TAG, "Scan finished (" + reason + "), " + missingNow.size() + " devices did not answer");
+        listener.onScanFinished(missingNow);
+    }
+}
@@ -0,0 +1,218 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// One UDP listener and one scan shared by all screens. Screens subscribe with a filter, listener and scan run
+// only while somebody is subscribed and the app is visible. Each subscriber gets each device once, and then
+// again only when its name or IP address changes.
+public class DiscoveryService {
+    private static final String LOG_TAG = "DiscoveryService";
+
+    // Known devices are expected to answer, so such scan stops as soon as all of them did. With default backoff
+    // packets go at 0, 0.25, 0.75, 1.75, 3.75 and 7.75 s, and scan which is not stopped ends 4 s after the last
+    // one, at 11.75 s.
+    private static final int KNOWN_DEVICES_SCAN_PACKETS = 6;
+    // New devices are not known in advance, so scan is not stopped early: with default backoff
+    // these packets are spread over about a minute, most of them in its first seconds
+    private static final int UNKNOWN_DEVICES_SCAN_PACKETS = 18;
+
+    public enum Filter {
+        KNOWN_DEVICES,   // devices from DevicesList
+        UNKNOWN_DEVICES  // configured devices which are not added to this app
+    }
+
+    public interface Listener {
+        // Both are called from network threads
+        void onDeviceFound(String macAddress, String name, String ipAddress);
+        // Missing are known devices which did not answer, scan for unknown devices does not know what is missing
+        void onScanFinished(Set<String> missingMacAddresses);
+    }
+
+    public class Subscription {
+        private final Filter filter;
+        private final Listener listener;
+        // MAC -> what was delivered, only accessed from listener thread
+        private final Map<String, String> deliveredNames = new HashMap<>();
+        private final Map<String, String> deliveredIpAddresses = new HashMap<>();
+
+        private Subscription(Filter filter, Listener listener) {
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        // Restarts scan, scan which is in progress is cancelled
+        public void rescan() {
+            DiscoveryService.this.rescan();
+        }
+
+        public void close() {
+            unsubscribe(this);
+        }
+
+        private void deliver(ScanReplyParser.Reply reply) {
+            // Parser keeps name and IP strings while they are the same, so comparing references is enough
+            final String macAddress = reply.getMacAddress();
+            if (deliveredNames.get(macAddress) == reply.getName() && deliveredIpAddresses.get(macAddress) == reply.getIpAddress()) {
+                return;
+            }
+            deliveredNames.put(macAddress, reply.getName());
+            deliveredIpAddresses.put(macAddress, reply.getIpAddress());
+            listener.onDeviceFound(macAddress, reply.getName(), reply.getIpAddress());
+        }
+    }
+
+    private final DevicesList devices;
+    private final UdpListener udpListener;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private boolean visible = false;
+    private boolean scanInterrupted = false;
+    private DiscoveryScan scan = null;
+
+    public DiscoveryService(DevicesList devices) {
+        this.devices = devices;
+        this.udpListener = new UdpListener(UdpSettings.UDP_LISTEN_PORT, new UdpListener.Listener() {
+            private final ScanReplyParser parser = new ScanReplyParser();
+
+            @Override
+            public void onReceive(ByteBuffer message, InetSocketAddress sender) {
+                final ScanReplyParser.Reply reply = parser.parse(message, sender.getAddress());
+                if (reply == null) {
+                    Log.d(LOG_TAG, "Bad scan reply: " + StandardCharsets.UTF_8.decode(message));
+                    return;
+                }
+                onReply(reply);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                Log.d(LOG_TAG, "Error on receiving UDP: " + exception.getMessage());
+            }
+        });
+    }
+
+    // Called from UI thread, screens which want scan results should call rescan() after that
+    public synchronized Subscription subscribe(Filter filter, Listener listener) {
+        final Subscription subscription = new Subscription(filter, listener);
+        subscriptions.add(subscription);
+        if (subscriptions.size() == 1 && visible) {
+            udpListener.start();
+        }
+        return subscription;
+    }
+
+    // Devices answer to scan only while app is visible, so socket and scan are not kept in background
+    public synchronized void onStart() {
+        visible = true;
+        if (!subscriptions.isEmpty()) {
+            udpListener.start();
+            if (scanInterrupted) {
+                rescan();
+            }
+        }
+    }
+
+    public synchronized void onStop() {
+        visible = false;
+        scanInterrupted = cancelScan();
+        udpListener.stop();
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        if (!subscriptions.remove(subscription) || !subscriptions.isEmpty()) {
+            return;
+        }
+        Log.d(LOG_TAG, "No subscribers left, stopping discovery");
+        cancelScan();
+        scanInterrupted = false;
+        udpListener.stop();
+    }
+
+    private synchronized void rescan() {
+        cancelScan();
+        if (subscriptions.isEmpty()) {
+            scanInterrupted = false;
+            return;
+        }
+        if (!visible) {
+            scanInterrupted = true;  // will be started in onStart()
+            return;
+        }
+        scanInterrupted = false;
+
+        boolean unknownWanted = false;
+        for (Subscription subscription : subscriptions) {
+            unknownWanted |= subscription.filter == Filter.UNKNOWN_DEVICES;
+        }
+        final List<String> knownMacAddresses = new ArrayList<>();
+        for (DeviceInfo device : devices.getList()) {
+            knownMacAddresses.add(device.getMacAddress());
+        }
+
+        final DiscoveryScan[] newScan = new DiscoveryScan[1];  // listener needs to know its scan
+        newScan[0] = new DiscoveryScan(
+                unknownWanted ? null : knownMacAddresses,
+                unknownWanted ? UNKNOWN_DEVICES_SCAN_PACKETS : KNOWN_DEVICES_SCAN_PACKETS,
+                missingMacAddresses -> onScanFinished(newScan[0], missingMacAddresses)
+        );
+        scan = newScan[0];
+        Log.d(LOG_TAG, "Starting scan for " + (unknownWanted ? "unknown" : knownMacAddresses.size() + " known") + " devices");
+        scan.start();
+    }
+
+    // Returns true if scan was in progress
+    private synchronized boolean cancelScan() {
+        if (scan == null) {
+            return false;
+        }
+        final boolean wasRunning = !scan.isFinished();
+        scan.cancel();
+        scan = null;
+        return wasRunning;
+    }
+
+    private void onScanFinished(DiscoveryScan finishedScan, Set<String> missingMacAddresses) {
+        synchronized (this) {
+            if (finishedScan != scan) {
+                return;
+            }
+            scan = null;
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.listener.onScanFinished(missingMacAddresses);
+        }
+    }
+
+    private void onReply(ScanReplyParser.Reply reply) {
+        final String macAddress = reply.getMacAddress();
+        final DeviceInfo device = devices.getDeviceByMacAddress(macAddress);
+        if (device != null) {
+            devices.getPresence().onScanReply(macAddress, reply.getIpAddress(), device.getPort());
+        }
+        final DiscoveryScan currentScan;
+        synchronized (this) {
+            currentScan = scan;
+        }
+        if (currentScan != null) {
+            currentScan.onDeviceAnswered(macAddress);
+        }
+
+        final Filter filter = device != null ? Filter.KNOWN_DEVICES : Filter.UNKNOWN_DEVICES;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter == filter) {
+                subscription.deliver(reply);
+            }
+        }
+    }
+}
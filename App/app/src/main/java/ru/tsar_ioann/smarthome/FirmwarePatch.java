@@ -0,0 +1,101 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+// Rebuilds firmware image from previous one and patch made by test_utils/make_firmware_patch.py.
+// Patch is gzip of: "SHPATCH1", u32 old size, u32 new size, then records until new image is complete:
+// i32 seek, u32 diff length, u32 extra length, diff bytes, extra bytes. Position in old image is moved by seek,
+// then each diff byte is added to next old byte, then extra bytes are copied as is. All numbers are big-endian.
+// Images are streamed, so neither of them is loaded to memory as a whole.
+public class FirmwarePatch {
+    private static final byte[] MAGIC = "SHPATCH1".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    public static class FormatException extends IOException {
+        public FormatException(String message) {
+            super("Bad firmware patch: " + message);
+        }
+    }
+
+    // Returns SHA-256 of written image
+    public static String apply(File oldImage, File patch, File target) throws IOException {
+        final MessageDigest digest = Utils.newSha256Digest();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(patch))));
+             FileChannel old = new FileInputStream(oldImage).getChannel();
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new FormatException("unknown format");
+            }
+            final long oldSize = in.readInt() & 0xFFFFFFFFL;
+            final long newSize = in.readInt() & 0xFFFFFFFFL;
+            if (oldSize != old.size()) {
+                throw new FormatException("made for image of " + oldSize + " bytes, but previous image has " + old.size());
+            }
+
+            final byte[] chunk = new byte[BUFFER_SIZE];
+            final ByteBuffer oldChunk = ByteBuffer.allocate(BUFFER_SIZE);
+            long written = 0;
+            long oldPos = 0;
+            while (written < newSize) {
+                oldPos += in.readInt();
+                final long diffLength = in.readInt() & 0xFFFFFFFFL;
+                final long extraLength = in.readInt() & 0xFFFFFFFFL;
+                if (written + diffLength + extraLength > newSize) {
+                    throw new FormatException("record goes beyond image end");
+                }
+                if (oldPos < 0 || oldPos + diffLength > oldSize) {
+                    throw new FormatException("reference to bytes outside of previous image");
+                }
+
+                for (long left = diffLength; left > 0; ) {
+                    final int n = (int) Math.min(BUFFER_SIZE, left);
+                    in.readFully(chunk, 0, n);
+                    oldChunk.clear();
+                    oldChunk.limit(n);
+                    while (oldChunk.hasRemaining()) {
+                        if (old.read(oldChunk, oldPos + oldChunk.position()) < 0) {
+                            throw new FormatException("previous image ended unexpectedly");
+                        }
+                    }
+                    final byte[] oldBytes = oldChunk.array();
+                    for (int i = 0; i < n; ++i) {
+                        chunk[i] += oldBytes[i];
+                    }
+                    out.write(chunk, 0, n);
+                    digest.update(chunk, 0, n);
+                    oldPos += n;
+                    left -= n;
+                }
+
+                for (long left = extraLength; left > 0; ) {
+                    final int n = (int) Math.min(BUFFER_SIZE, left);
+                    in.readFully(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                    digest.update(chunk, 0, n);
+                    left -= n;
+                }
+
+                written += diffLength + extraLength;
+            }
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        return Utils.hashToHex(digest.digest());
+    }
+}
@@ -0,0 +1,244 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// Updates firmware of many devices: canary device goes first and alone, if it comes back with new version
+// the rest are updated with limited parallelism. Rollout halts when too many devices fail, devices which
+// were not started yet are left on old firmware then.
+public class FirmwareRollout {
+    private static final String LOG_TAG = "FirmwareRollout";
+
+    public static final int DEFAULT_PARALLELISM = 3;
+    public static final double DEFAULT_MAX_FAILURE_RATE = 0.2;
+
+    // Device reboots after "Update Success!" response and needs some time to join network again
+    private static final long VERIFY_FIRST_DELAY_MS = 15000;
+    private static final long VERIFY_RETRY_INTERVAL_MS = 5000;
+    private static final int VERIFY_ATTEMPTS = 10;
+
+    private static Timer verifyTimer = null;
+
+    public interface Listener {
+        // All methods are called from network threads
+        void onDeviceStarted(DeviceInfo device, boolean canary);
+        void onDeviceSucceeded(DeviceInfo device);
+        void onDeviceFailed(DeviceInfo device, int messageResId);
+        void onFinished(int succeeded, int failed, int notStarted, boolean halted);
+    }
+
+    private final FirmwareUpdater firmwareUpdater;
+    private final int parallelism;
+    private final double maxFailureRate;
+    private final Listener listener;
+
+    private final int targetVersion;
+    private final int devicesCount;
+    private final Queue<DeviceInfo> pending = new LinkedList<>();
+    private int running = 0;
+    private int succeeded = 0;
+    private int failed = 0;
+    private long estimatedSavedByCompressionMs = 0;
+    private boolean canaryPassed = false;
+    private boolean halted = false;
+    private boolean finished = false;
+
+    // Only devices which are discovered, online and have older firmware take part, first of them is canary
+    public FirmwareRollout(FirmwareUpdater firmwareUpdater, List<DeviceInfo> devices, int parallelism, double maxFailureRate, Listener listener) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be positive, got " + parallelism);
+        }
+        this.firmwareUpdater = firmwareUpdater;
+        this.parallelism = parallelism;
+        this.maxFailureRate = maxFailureRate;
+        this.listener = listener;
+        this.targetVersion = firmwareUpdater.getLastFirmwareVersion();
+        for (DeviceInfo device : devices) {
+            if (firmwareUpdater.canUpdate(device) && !device.isOffline()) {
+                pending.add(device);
+            }
+        }
+        this.devicesCount = pending.size();
+    }
+
+    public int getDevicesCount() {
+        return devicesCount;
+    }
+
+    // Null when there is nothing to update
+    public synchronized DeviceInfo getCanaryDevice() {
+        return canaryPassed ? null : pending.peek();
+    }
+
+    // Estimated upload time which was not spent thanks to compressed images, see UploadStats.getEstimatedSavedMs()
+    public synchronized long getEstimatedSavedByCompressionMs() {
+        return estimatedSavedByCompressionMs;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getTargetVersion() {
+        return targetVersion;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public void start() {
+        Log.d(LOG_TAG, "Starting rollout of firmware v" + targetVersion + " to " + getDevicesCount() + " devices"
+                + " (parallelism " + parallelism + ", max failure rate " + maxFailureRate + ")");
+        startNext();
+    }
+
+    // Devices which are being updated now are not interrupted: cutting firmware upload may brick them
+    public void halt() {
+        synchronized (this) {
+            if (halted) {
+                return;
+            }
+            Log.d(LOG_TAG, "Rollout halted, " + pending.size() + " devices will not be updated");
+            halted = true;
+        }
+        finishIfDone();
+    }
+
+    private void startNext() {
+        final List<DeviceInfo> toStart = new ArrayList<>();
+        final boolean canary;
+        synchronized (this) {
+            canary = !canaryPassed;
+            final int limit = canary ? 1 : parallelism;
+            while (!halted && running < limit && !pending.isEmpty()) {
+                toStart.add(pending.poll());
+                ++running;
+            }
+        }
+        for (DeviceInfo device : toStart) {
+            Log.d(LOG_TAG, "Updating " + (canary ? "canary " : "") + "device " + device.getMacAddress());
+            listener.onDeviceStarted(device, canary);
+            firmwareUpdater.asyncUpdateFirmware(device, new FirmwareUpdater.Listener() {
+                @Override
+                public void onSuccess(FirmwareUpdater.UploadStats stats) {
+                    synchronized (FirmwareRollout.this) {
+                        estimatedSavedByCompressionMs += stats.getEstimatedSavedMs();
+                    }
+                    device.getMailbox().resetHealth();
+                    scheduleVerify(device, VERIFY_FIRST_DELAY_MS, VERIFY_ATTEMPTS);
+                }
+
+                @Override
+                public void onError(int messageResId) {
+                    onDeviceFinished(device, false, messageResId);
+                }
+
+                @Override
+                public void onUploadProgress(int percent) {
+                }
+            });
+        }
+        finishIfDone();
+    }
+
+    // Uploaded firmware is not trusted until device reports new version itself. Device does not answer while it
+    // reboots, so circuit breaker is reset before each attempt: otherwise it opens after first misses and the rest
+    // of attempts fail at once without reaching device.
+    private void scheduleVerify(DeviceInfo device, long delayMs, int attemptsLeft) {
+        schedule(new TimerTask() {
+            @Override
+            public void run() {
+                device.getMailbox().getCircuitBreaker().reset();
+                device.asyncRediscover().addCallback(new HttpFuture.Callback<Http.Response>() {
+                    @Override
+                    public void onSuccess(Http.Response response) {
+                        if (device.isDiscovered() && device.getFirmwareVersion() >= targetVersion) {
+                            onDeviceFinished(device, true, 0);
+                        } else if (device.isDiscovered()) {
+                            Log.d(LOG_TAG, "Device " + device.getMacAddress() + " came back with firmware v" + device.getFirmwareVersion());
+                            onDeviceFinished(device, false, R.string.firmware_update_not_applied);
+                        } else {
+                            retry();
+                        }
+                    }
+
+                    @Override
+                    public void onError(IOException exception) {
+                        retry();
+                    }
+
+                    private void retry() {
+                        if (attemptsLeft > 1) {
+                            scheduleVerify(device, VERIFY_RETRY_INTERVAL_MS, attemptsLeft - 1);
+                        } else {
+                            onDeviceFinished(device, false, R.string.firmware_update_device_not_back);
+                        }
+                    }
+                });
+            }
+        }, delayMs);
+    }
+
+    private void onDeviceFinished(DeviceInfo device, boolean success, int messageResId) {
+        boolean haltNow = false;
+        synchronized (this) {
+            --running;
+            if (success) {
+                ++succeeded;
+                canaryPassed = true;
+            } else {
+                ++failed;
+                // Failed canary means new firmware is not proven to work on any device, so nothing else is touched.
+                // Failures are counted against all devices, so one failure of first few does not halt big rollout.
+                if (!canaryPassed || failed > maxFailureRate * devicesCount) {
+                    haltNow = !halted;
+                }
+            }
+        }
+        if (success) {
+            Log.d(LOG_TAG, "Device " + device.getMacAddress() + " is updated to firmware v" + targetVersion);
+            listener.onDeviceSucceeded(device);
+        } else {
+            Log.d(LOG_TAG, "Firmware update of device " + device.getMacAddress() + " failed");
+            listener.onDeviceFailed(device, messageResId);
+        }
+        if (haltNow) {
+            halt();
+        }
+        startNext();
+    }
+
+    private void finishIfDone() {
+        final int succeededCount, failedCount, notStarted;
+        final boolean wasHalted;
+        synchronized (this) {
+            if (finished || running > 0 || (!halted && !pending.isEmpty())) {
+                return;
+            }
+            finished = true;
+            succeededCount = succeeded;
+            failedCount = failed;
+            notStarted = pending.size();
+            wasHalted = halted;
+            pending.clear();
+        }
+        Log.d(LOG_TAG, "Rollout finished: " + succeededCount + " succeeded, " + failedCount + " failed, " + notStarted + " not started, "
+                + "compressed uploads saved an estimated " + getEstimatedSavedByCompressionMs() / 1000 + " s");
+        listener.onFinished(succeededCount, failedCount, notStarted, wasHalted);
+    }
+
+    private static synchronized void schedule(TimerTask task, long delayMs) {
+        if (verifyTimer == null) {
+            verifyTimer = new Timer("firmware-rollout", true);
+        }
+        verifyTimer.schedule(task, delayMs);
+    }
+}
@@ -1,21 +1,31 @@
 package ru.tsar_ioann.smarthome;
 
+import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class FirmwareUpdater {
     private static final String LOG_TAG = "FirmwareUpdater";
@@ -41,28 +51,103 @@ public class FirmwareUpdater {
     private static final String UPDATE_SUCCESS_RESPONSE = "<META http-equiv=\"refresh\" content=\"15;URL=/\">Update Success! Rebooting...";
     private static final String UPDATE_ERROR_PREFIX = "Update error: ";
 
+    private static final String INFO_KEY_PATCHES = "patches";
+    private static final String PATCH_KEY_FROM_SHA256 = "from_sha256";
+    private static final String PATCH_KEY_FILE = "file";
+    private static final String PATCH_KEY_SHA256 = "sha256";
+
+    // Patch which rebuilds firmware from previous image, it is much smaller than firmware itself
+    private static class PatchInfo {
+        public final String fromSha256;
+        public final String fileUrl;
+        public final String sha256;
+
+        public PatchInfo(String fromSha256, String fileUrl, String sha256) {
+            this.fromSha256 = fromSha256;
+            this.fileUrl = fileUrl;
+            this.sha256 = sha256;
+        }
+    }
+
     private static class FirmwareInfo {
         public final int version;
         public final String fileUrl;
         public final String sha256;
         public final JSONObject description;
+        public final List<PatchInfo> patches;
 
-        public FirmwareInfo(int version, String fileUrl, String sha256, JSONObject description) {
+        public FirmwareInfo(int version, String fileUrl, String sha256, JSONObject description, List<PatchInfo> patches) {
             this.version = version;
             this.fileUrl = fileUrl;
             this.sha256 = sha256;
             this.description = description;
+            this.patches = patches;
         }
     }
 
-    private FirmwareInfo lastFirmwareInfo = null;
-    private byte[] lastFirmwareBinary = null;
+    private static final String KEY_INFO_JSON = "info-json";
+    private static final String KEY_INFO_ETAG = "info-etag";
+    private static final String KEY_INFO_LAST_MODIFIED = "info-last-modified";
+    private static final String KEY_INFO_CHECKED_AT = "info-checked-at";
+
+    // Firmware is released rarely, so info about it is not requested on every resume of app
+    private static final long MIN_RECHECK_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+    private static final String FIRMWARE_FILE_EXTENSION = ".bin";
+    private static final String COMPRESSED_FILE_EXTENSION = ".gz";
+    private static final int COMPRESSION_BUFFER_SIZE = 16 * 1024;
+    // Each attempt continues from bytes received by previous ones
+    private static final int DOWNLOAD_ATTEMPTS = 5;
+
+    private final File cacheDir;
+    private final SharedPreferences storage;
+    private volatile FirmwareInfo lastFirmwareInfo = null;
+    private boolean checkInProgress = false;
+    private HttpFuture<File> firmwareDownload = null;
+    private FirmwareInfo firmwareDownloadInfo = null;
+    private FirmwareRollout rollout = null;  // kept here because screens are recreated while it runs
+
+    // Firmware binaries are kept in cache directory under their SHA-256, so they survive restarts of app
+    // and are never loaded to memory as a whole. Info about last firmware is kept in storage.
+    public FirmwareUpdater(File cacheDir, SharedPreferences storage) {
+        this.cacheDir = cacheDir;
+        this.storage = storage;
+        final String infoJson = storage.getString(KEY_INFO_JSON, null);
+        if (infoJson != null) {
+            lastFirmwareInfo = parseFirmwareInfo(infoJson);
+        }
+    }
 
     public void asyncCheckForFirmwareUpdates() {
+        final Map<String, String> headers = new HashMap<>();
+        synchronized (this) {
+            final long sinceLastCheckMs = System.currentTimeMillis() - storage.getLong(KEY_INFO_CHECKED_AT, 0);
+            if (lastFirmwareInfo != null && sinceLastCheckMs >= 0 && sinceLastCheckMs < MIN_RECHECK_INTERVAL_MS) {
+                Log.d(LOG_TAG, "Skipping check for firmware updates, last check was " + sinceLastCheckMs / 1000 + " seconds ago");
+                return;
+            }
+            if (checkInProgress) {
+                return;
+            }
+            checkInProgress = true;
+
+            // Without known info there is nothing to revalidate, so full response is requested
+            if (lastFirmwareInfo != null) {
+                final String etag = storage.getString(KEY_INFO_ETAG, null);
+                final String lastModified = storage.getString(KEY_INFO_LAST_MODIFIED, null);
+                if (etag != null) {
+                    headers.put("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    headers.put("If-Modified-Since", lastModified);
+                }
+            }
+        }
+
         Http.asyncRequest(
                 FIRMWARE_UPDATES_ADDRESS + LAST_FIRMWARE_INFO_FILENAME,
                 null,
-                null,
+                headers,
                 null,
                 2,
                 new Http.Listener() {
@@ -70,50 +155,139 @@ public class FirmwareUpdater {
 
                     @Override
                     public void onResponse(Http.Response response) {
+                        if (response.getHttpCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            Log.d(LOG_TAG, "Info about last available firmware has not changed");
+                            finishCheck(storage.edit());
+                            return;
+                        }
                         if (response.getHttpCode() != HttpURLConnection.HTTP_OK) {
                             Log.d(LOG_TAG, ANY_ERROR_PREFIX + ", got bad response code " + response.getHttpCode());
+                            finishCheck(null);
                             return;
                         }
 
                         final String respStr = response.getDataAsStr();
-                        try {
-                            JSONObject info = new JSONObject(respStr);
-                            for (String requiredKey : INFO_REQUIRED_KEYS) {
-                                if (!info.has(requiredKey)) {
-                                    Log.d(LOG_TAG, ANY_ERROR_PREFIX + ": no key '" + requiredKey + "' in JSON [" + respStr + "]");
-                                    return;
-                                }
-                            }
-                            final JSONObject description = info.getJSONObject(INFO_KEY_DESCRIPTION);
-                            if (!description.has(DEFAULT_LANG_KEY)) {
-                                Log.d(LOG_TAG, ANY_ERROR_PREFIX + ": no default language key '" + DEFAULT_LANG_KEY
-                                        + "' in '" + INFO_KEY_DESCRIPTION + "' in JSON [" + respStr + "]");
-                                return;
-                            }
-
-                            lastFirmwareInfo = new FirmwareInfo(
-                                    info.getInt(INFO_KEY_VERSION),
-                                    info.getString(INFO_KEY_FILE),
-                                    info.getString(INFO_KEY_SHA256),
-                                    description
-                            );
-                            Log.d(LOG_TAG, "Got info about last available firmware: version " + lastFirmwareInfo.version + ", file '" + lastFirmwareInfo.fileUrl + "'");
-                        } catch (JSONException e) {
-                            Log.d(LOG_TAG, ANY_ERROR_PREFIX + ": could not parse JSON [" + respStr + "]");
+                        final FirmwareInfo info = parseFirmwareInfo(respStr);
+                        if (info == null) {
+                            finishCheck(null);
+                            return;
+                        }
+                        synchronized (FirmwareUpdater.this) {
+                            lastFirmwareInfo = info;
                         }
+                        Log.d(LOG_TAG, "Got info about last available firmware: version " + info.version + ", file '" + info.fileUrl + "'");
+                        finishCheck(storage.edit()
+                                .putString(KEY_INFO_JSON, respStr)
+                                .putString(KEY_INFO_ETAG, response.getHeader("ETag"))
+                                .putString(KEY_INFO_LAST_MODIFIED, response.getHeader("Last-Modified")));
                     }
 
                     @Override
                     public void onError(IOException exception) {
                         Log.d(LOG_TAG, ANY_ERROR_PREFIX + " with exception: " + exception.getMessage());
+                        finishCheck(null);
                     }
                 }
         );
     }
 
+    // Check time is saved only after successful check, failed one is repeated on next refresh
+    private synchronized void finishCheck(SharedPreferences.Editor editor) {
+        checkInProgress = false;
+        if (editor != null) {
+            editor.putLong(KEY_INFO_CHECKED_AT, System.currentTimeMillis()).apply();
+        }
+    }
+
+    private static FirmwareInfo parseFirmwareInfo(String json) {
+        final String errorPrefix = "Failed to parse firmware info";
+        try {
+            JSONObject info = new JSONObject(json);
+            for (String requiredKey : INFO_REQUIRED_KEYS) {
+                if (!info.has(requiredKey)) {
+                    Log.d(LOG_TAG, errorPrefix + ": no key '" + requiredKey + "' in JSON [" + json + "]");
+                    return null;
+                }
+            }
+            final JSONObject description = info.getJSONObject(INFO_KEY_DESCRIPTION);
+            if (!description.has(DEFAULT_LANG_KEY)) {
+                Log.d(LOG_TAG, errorPrefix + ": no default language key '" + DEFAULT_LANG_KEY
+                        + "' in '" + INFO_KEY_DESCRIPTION + "' in JSON [" + json + "]");
+                return null;
+            }
+
+            final List<PatchInfo> patches = new ArrayList<>();
+            if (info.has(INFO_KEY_PATCHES)) {
+                final JSONArray patchesJson = info.getJSONArray(INFO_KEY_PATCHES);
+                for (int i = 0; i < patchesJson.length(); ++i) {
+                    final JSONObject patch = patchesJson.getJSONObject(i);
+                    patches.add(new PatchInfo(
+                            patch.getString(PATCH_KEY_FROM_SHA256).toLowerCase(Locale.ROOT),
+                            patch.getString(PATCH_KEY_FILE),
+                            patch.getString(PATCH_KEY_SHA256).toLowerCase(Locale.ROOT)
+                    ));
+                }
+            }
+
+            return new FirmwareInfo(
+                    info.getInt(INFO_KEY_VERSION),
+                    info.getString(INFO_KEY_FILE),
+                    info.getString(INFO_KEY_SHA256).toLowerCase(Locale.ROOT),
+                    description,
+                    patches
+            );
+        } catch (JSONException e) {
+            Log.d(LOG_TAG, errorPrefix + ": could not parse JSON [" + json + "]");
+            return null;
+        }
+    }
+
+    public static class UploadStats {
+        private final long firmwareSize;
+        private final long sentSize;
+        private final long durationMs;
+
+        public UploadStats(long firmwareSize, long sentSize, long durationMs) {
+            this.firmwareSize = firmwareSize;
+            this.sentSize = sentSize;
+            this.durationMs = durationMs;
+        }
+
+        public boolean isCompressed() {
+            return sentSize < firmwareSize;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        // Not measured: time which uncompressed image would take at the throughput of this upload, assuming
+        // that device link is the bottleneck
+        public long getEstimatedSavedMs() {
+            if (sentSize == 0) {
+                return 0;
+            }
+            return durationMs * (firmwareSize - sentSize) / sentSize;
+        }
+
+        @Override
+        public String toString() {
+            return sentSize + " of " + firmwareSize + " bytes in " + durationMs + " ms"
+                    + (isCompressed() ? ", estimated " + getEstimatedSavedMs() + " ms saved by compression" : "");
+        }
+    }
+
     public interface Listener {
-        void onSuccess();
+        void onSuccess(UploadStats stats);
         void onError(int messageResId);
+        // Called from network thread each time whole percent of firmware is sent to device
+        void onUploadProgress(int percent);
+    }
+
+    public boolean canUpdate(DeviceInfo device) {
+        return device.isDiscovered()
+                && device.supportsFirmwareUpdateOverNetwork()
+                && device.getFirmwareVersion() < getLastFirmwareVersion();
     }
 
     public void asyncUpdateFirmware(DeviceInfo device, Listener listener) {
@@ -121,87 +295,271 @@ public class FirmwareUpdater {
             throw new RuntimeException("Firmware update was started without info about it");
         }
 
-        if (lastFirmwareBinary != null && Utils.sha256(lastFirmwareBinary).equalsIgnoreCase(lastFirmwareInfo.sha256)) {
-            Log.d(LOG_TAG, "Using cached firmware binary");
-            uploadFirmwareToDevice(device, lastFirmwareBinary, listener);
+        asyncGetFirmwareFile().addCallback(new HttpFuture.Callback<File>() {
+            @Override
+            public void onSuccess(File firmwareFile) {
+                uploadFirmwareToDevice(device, firmwareFile, listener);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                listener.onError(exception instanceof FirmwareException
+                        ? ((FirmwareException) exception).messageResId
+                        : R.string.firmware_download_failed);
+            }
+        });
+    }
+
+    private static class FirmwareException extends IOException {
+        public final int messageResId;
+
+        public FirmwareException(int messageResId) {
+            super("Firmware is not available");
+            this.messageResId = messageResId;
+        }
+    }
+
+    // Devices updated at the same time wait for one download instead of writing the same file concurrently
+    // File name is SHA-256 of its content and file is renamed to it only after hash is checked,
+    // so existing file needs no verification
+    private synchronized HttpFuture<File> asyncGetFirmwareFile() {
+        final FirmwareInfo info = lastFirmwareInfo;
+        final File firmwareFile = new File(cacheDir, info.sha256 + FIRMWARE_FILE_EXTENSION);
+        if (firmwareFile.exists()) {
+            Log.d(LOG_TAG, "Using cached firmware binary " + firmwareFile.getName());
+            return HttpFuture.succeeded(firmwareFile);
+        }
+        if (firmwareDownload != null && firmwareDownloadInfo == info) {
+            Log.d(LOG_TAG, "Waiting for firmware binary which is being downloaded");
+            return firmwareDownload;
+        }
+
+        final HttpFuture<File> result = new HttpFuture<>();
+        firmwareDownload = result;
+        firmwareDownloadInfo = info;
+
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Log.d(LOG_TAG, "Could not create directory " + cacheDir);
+            finishDownload(result, null, R.string.firmware_download_failed);
+            return result;
+        }
+        for (PatchInfo patch : info.patches) {
+            final File previousFile = new File(cacheDir, patch.fromSha256 + FIRMWARE_FILE_EXTENSION);
+            if (previousFile.exists()) {
+                downloadPatch(info, patch, previousFile, firmwareFile, result);
+                return result;
+            }
+        }
+        downloadFull(info, firmwareFile, result);
+        return result;
+    }
+
+    private void downloadFull(FirmwareInfo info, File firmwareFile, HttpFuture<File> result) {
+        Log.d(LOG_TAG, "Downloading latest firmware binary");
+        final File downloadedFile = new File(cacheDir, info.sha256 + ".download");
+        Http.asyncDownload(
+                FIRMWARE_UPDATES_ADDRESS + info.fileUrl,
+                downloadedFile,
+                DOWNLOAD_ATTEMPTS,
+                3500,
+                20000
+        ).addCallback(new HttpFuture.Callback<Http.Download>() {
+            @Override
+            public void onSuccess(Http.Download download) {
+                if (download.getHttpCode() != HttpURLConnection.HTTP_OK) {
+                    finishDownload(result, null, R.string.firmware_download_bad_response);
+                    return;
+                }
+                storeFirmware(info, downloadedFile, download.getSha256(), firmwareFile, result);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                finishDownload(result, null, R.string.firmware_download_failed);
+            }
+        });
+    }
+
+    // Any problem with patch is not fatal: full binary is downloaded then
+    private void downloadPatch(FirmwareInfo info, PatchInfo patch, File previousFile, File firmwareFile, HttpFuture<File> result) {
+        Log.d(LOG_TAG, "Downloading patch from cached firmware " + previousFile.getName());
+        final File patchFile = new File(cacheDir, info.sha256 + "." + patch.fromSha256 + ".patch");
+        Http.asyncDownload(
+                FIRMWARE_UPDATES_ADDRESS + patch.fileUrl,
+                patchFile,
+                DOWNLOAD_ATTEMPTS,
+                3500,
+                20000
+        ).addCallback(new HttpFuture.Callback<Http.Download>() {
+            @Override
+            public void onSuccess(Http.Download download) {
+                if (download.getHttpCode() != HttpURLConnection.HTTP_OK || !download.getSha256().equalsIgnoreCase(patch.sha256)) {
+                    Log.d(LOG_TAG, "Could not download patch (code " + download.getHttpCode() + "), falling back to full binary");
+                    patchFile.delete();
+                    downloadFull(info, firmwareFile, result);
+                    return;
+                }
+                final File rebuiltFile = new File(cacheDir, info.sha256 + ".download");
+                final String sha256;
+                try {
+                    sha256 = FirmwarePatch.apply(previousFile, patchFile, rebuiltFile);
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Could not apply patch: " + e.getMessage() + ", falling back to full binary");
+                    downloadFull(info, firmwareFile, result);
+                    return;
+                } finally {
+                    patchFile.delete();
+                }
+                Log.d(LOG_TAG, "Firmware binary rebuilt from " + download.getSize() + " bytes patch");
+                if (!sha256.equalsIgnoreCase(info.sha256)) {
+                    Log.d(LOG_TAG, "Rebuilt firmware has wrong hash, falling back to full binary");
+                    rebuiltFile.delete();
+                    downloadFull(info, firmwareFile, result);
+                    return;
+                }
+                storeFirmware(info, rebuiltFile, sha256, firmwareFile, result);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                Log.d(LOG_TAG, "Could not download patch: " + exception.getMessage() + ", falling back to full binary");
+                downloadFull(info, firmwareFile, result);
+            }
+        });
+    }
+
+    private void storeFirmware(FirmwareInfo info, File file, String sha256, File firmwareFile, HttpFuture<File> result) {
+        if (!sha256.equalsIgnoreCase(info.sha256)) {
+            file.delete();
+            finishDownload(result, null, R.string.firmware_hash_mismatch);
+            return;
+        }
+        if (!file.renameTo(firmwareFile)) {
+            file.delete();
+            finishDownload(result, null, R.string.firmware_download_failed);
+            return;
+        }
+        removeOtherFirmwareFiles(firmwareFile);
+        finishDownload(result, firmwareFile, 0);
+    }
+
+    // Only the latest firmware is ever uploaded, so older binaries and their partial downloads are just taking space
+    private void removeOtherFirmwareFiles(File keep) {
+        final String keepPrefix = keep.getName().substring(0, keep.getName().length() - FIRMWARE_FILE_EXTENSION.length());
+        final File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(keepPrefix)) {
+                Log.d(LOG_TAG, "Removing old firmware file " + file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    private void finishDownload(HttpFuture<File> download, File firmwareFile, int errorResId) {
+        synchronized (this) {
+            if (firmwareDownload == download) {
+                firmwareDownload = null;
+                firmwareDownloadInfo = null;
+            }
+        }
+        if (firmwareFile != null) {
+            download.complete(firmwareFile);
         } else {
-            Log.d(LOG_TAG, "Downloading latest firmware binary");
-            Http.asyncRequest(
-                    FIRMWARE_UPDATES_ADDRESS + lastFirmwareInfo.fileUrl,
-                    null,
-                    null,
-                    null,
-                    1,
-                    new Http.Listener() {
-                        @Override
-                        public void onResponse(Http.Response response) {
-                            if (response.getHttpCode() == HttpURLConnection.HTTP_OK) {
-                                final byte[] firmwareBinary = response.getData();
-                                if (Utils.sha256(firmwareBinary).equalsIgnoreCase(lastFirmwareInfo.sha256)) {
-                                    lastFirmwareBinary = firmwareBinary;
-                                    uploadFirmwareToDevice(device, lastFirmwareBinary, listener);
-                                } else {
-                                    listener.onError(R.string.firmware_hash_mismatch);
-                                }
-                            } else {
-                                listener.onError(R.string.firmware_download_bad_response);
-                            }
-                        }
+            download.fail(new FirmwareException(errorResId));
+        }
+    }
 
-                        @Override
-                        public void onError(IOException exception) {
-                            listener.onError(R.string.firmware_download_failed);
-                        }
-                    },
-                    3500,
-                    20000
-            );
+    // Compressed image is made once for each firmware and kept next to it in cache
+    private synchronized File getCompressedFirmwareFile(File firmwareFile) throws IOException {
+        final File compressedFile = new File(firmwareFile.getPath() + COMPRESSED_FILE_EXTENSION);
+        if (compressedFile.exists()) {
+            return compressedFile;
         }
+        final long startET = SystemClock.elapsedRealtime();
+        final File tmpFile = new File(compressedFile.getPath() + ".tmp");
+        try (FileInputStream in = new FileInputStream(firmwareFile);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile), COMPRESSION_BUFFER_SIZE) {
+                 {
+                     def.setLevel(Deflater.BEST_COMPRESSION);
+                 }
+             }) {
+            final byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        if (!tmpFile.renameTo(compressedFile)) {
+            tmpFile.delete();
+            throw new IOException("Could not move compressed firmware to " + compressedFile);
+        }
+        Log.d(LOG_TAG, "Firmware compressed from " + firmwareFile.length() + " to " + compressedFile.length()
+                + " bytes in " + (SystemClock.elapsedRealtime() - startET) + " ms");
+        return compressedFile;
     }
 
-    private static void uploadFirmwareToDevice(DeviceInfo device, byte[] firmwareBinary, Listener listener) {
-        Log.d(LOG_TAG, "Uploading firmware to device (size: " + firmwareBinary.length + " bytes)");
+    private void uploadFirmwareToDevice(DeviceInfo device, File firmwareFile, Listener listener) {
+        if (device.supportsCompressedFirmwareUpload()) {
+            try {
+                uploadFirmwareToDevice(device, firmwareFile, getCompressedFirmwareFile(firmwareFile), listener);
+                return;
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Could not compress firmware, uploading it as is: " + e.getMessage());
+            }
+        }
+        uploadFirmwareToDevice(device, firmwareFile, firmwareFile, listener);
+    }
+
+    private void uploadFirmwareToDevice(DeviceInfo device, File firmwareFile, File uploadedFile, Listener listener) {
+        final boolean compressed = uploadedFile != firmwareFile;
+        Log.d(LOG_TAG, "Uploading " + (compressed ? "compressed " : "") + "firmware to device (size: " + uploadedFile.length() + " bytes)");
 
         String loginAndPassword = UPDATER_USERNAME + ":" + device.getHttpPassword();
-        String boundary =  "*****" + System.currentTimeMillis() + "*****";
+        MultipartBody body = new MultipartBody("firmware", "firmware.bin", uploadedFile);
 
         Map<String, String> headers = new HashMap<>();
         headers.put("Authorization", "Basic " + Base64.encodeToString(loginAndPassword.getBytes(StandardCharsets.UTF_8), Base64.DEFAULT));
         headers.put("Connection", "Keep-Alive");
-        headers.put("Content-Type", "multipart/form-data; boundary=" + boundary);
+        headers.put("Content-Type", body.getContentType());
 
-        ByteArrayOutputStream multipartData = new ByteArrayOutputStream();
-        DataOutputStream outputStream = new DataOutputStream(multipartData);
-        try {
-            outputStream.writeBytes("--" + boundary + "\r\n");
-            outputStream.writeBytes("Content-Disposition: form-data; name=\"firmware\"; filename=\"firmware.bin\"\r\n");
-            outputStream.writeBytes("Content-Type: application/octet-stream\r\n");
-            //outputStream.writeBytes("Content-Transfer-Encoding: binary\r\n");  // ESP fails to parse with this line
-            outputStream.writeBytes("\r\n");
-            outputStream.write(firmwareBinary, 0, firmwareBinary.length);
-            outputStream.writeBytes("\r\n");
-            outputStream.writeBytes("--" + boundary + "--\r\n");
-            outputStream.flush();
-        } catch (IOException exception) {
-            listener.onError(R.string.firmware_upload_failed_to_prepare_buffer);
-            return;
-        }
+        final int[] lastPercent = {-1};
+        body.setProgressListener((sentBytes, totalBytes) -> {
+            final int percent = (int) (sentBytes * 100 / totalBytes);
+            if (percent != lastPercent[0]) {
+                lastPercent[0] = percent;
+                listener.onUploadProgress(percent);
+            }
+        });
 
-        Http.asyncRequest(
+        final long startET = SystemClock.elapsedRealtime();
+        device.getMailbox().asyncUpload(
+                DeviceMailbox.Priority.INTERACTIVE,
                 device.getHttpAddress() + DeviceInfo.Handlers.UPDATE_FIRMWARE,
-                multipartData.toByteArray(),
+                body,
                 headers,
-                null,
-                1,
                 new Http.Listener() {
                     @Override
                     public void onResponse(Http.Response response) {
                         if (response.getHttpCode() == HttpURLConnection.HTTP_OK) {
                             final String responseStr = response.getDataAsStr();
                             if (responseStr.equals(UPDATE_SUCCESS_RESPONSE)) {
-                                listener.onSuccess();
+                                final UploadStats stats = new UploadStats(firmwareFile.length(), uploadedFile.length(), SystemClock.elapsedRealtime() - startET);
+                                Log.d(LOG_TAG, "Firmware uploaded: " + stats);
+                                listener.onSuccess(stats);
                             } else if (responseStr.startsWith(UPDATE_ERROR_PREFIX)) {
                                 Log.d(LOG_TAG, "Firmware update failed, full response: [" + responseStr + "]");
+                                if (compressed) {
+                                    // Nothing was flashed yet when updater refuses image, so it is safe to send it uncompressed
+                                    Log.d(LOG_TAG, "Retrying with uncompressed firmware");
+                                    uploadFirmwareToDevice(device, firmwareFile, firmwareFile, listener);
+                                    return;
+                                }
                                 listener.onError(R.string.firmware_update_failed_with_error);
                             } else {
                                 Log.d(LOG_TAG, "Unexpected answer from device, full response: [" + responseStr + "]");
@@ -223,6 +581,22 @@ public class FirmwareUpdater {
         );
     }
 
+    // Returns false without starting new rollout if previous one is still running
+    public boolean startRollout(FirmwareRollout newRollout) {
+        synchronized (this) {
+            if (isRolloutInProgress()) {
+                return false;
+            }
+            rollout = newRollout;
+        }
+        newRollout.start();
+        return true;
+    }
+
+    public synchronized boolean isRolloutInProgress() {
+        return rollout != null && !rollout.isFinished();
+    }
+
     public int getLastFirmwareVersion() {
         if (lastFirmwareInfo == null) {
             return -1;
@@ -0,0 +1,34 @@
+package ru.tsar_ioann.smarthome;
+
+// Decides when idempotent request to device is sent once more over a separate connection, because the first try
+// is slower than almost all previous ones. Device's web server handles one client at a time, so hedges are rare:
+// no more than one at a time and about one per twenty requests.
+public class HedgePolicy {
+    private static final double PERCENTILE = 0.95;
+    private static final int MIN_SAMPLES = 20;
+    private static final long MIN_DELAY_MS = 50;
+
+    private final RetryPolicy.RetryBudget budget = new RetryPolicy.RetryBudget(2, 0.05);
+    private boolean hedgeInProgress = false;
+
+    // Delay after which hedge should be sent, -1 if there is not enough statistics to know what is slow
+    public long getHedgeDelayMs(RttEstimator rttEstimator) {
+        budget.deposit();
+        if (rttEstimator.getSamplesCount() < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(MIN_DELAY_MS, rttEstimator.getPercentileMs(PERCENTILE));
+    }
+
+    public synchronized boolean tryStartHedge() {
+        if (hedgeInProgress || !budget.tryWithdraw()) {
+            return false;
+        }
+        hedgeInProgress = true;
+        return true;
+    }
+
+    public synchronized void onHedgeFinished() {
+        hedgeInProgress = false;
+    }
+}
@@ -1,17 +1,31 @@
 package ru.tsar_ioann.smarthome;
 
 import android.net.Network;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimerTask;
 
 public class Http {
     public static final int DEFAULT_PORT = 80;
@@ -19,39 +33,45 @@ public class Http {
     private static final String LOG_TAG = "Http";
     private static final int MAX_REQUEST_SIZE_FOR_LOGGING = 256;
     private static final int MAX_RESPONSE_SIZE_FOR_LOGGING = 256;
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;  // HttpURLConnection has no constant for it
 
-    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 2500;
-    private static final int DEFAULT_READ_TIMEOUT_MS = 2500;
-    private static final int PAUSE_BETWEEN_RETRIES_MS = 50;  // helps when connect exception happens immediately
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2500;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 2500;
 
     public static class Response {
         private final int httpCode;
-        private final List<Byte> buffer;
-        private byte[] data = null;
+        private final ResponseBody body;
+        private final Map<String, String> headers;  // names are lower-cased, empty when transport does not keep them
 
         public Response(int httpCode) {
-            this.httpCode = httpCode;
-            this.buffer = new ArrayList<>();
+            this(httpCode, new ResponseBody(0));
         }
 
-        public void appendData(byte[] bytes, int len) {
-            for (int i = 0; i < len; ++i) {
-                buffer.add(bytes[i]);
-            }
+        public Response(int httpCode, ResponseBody body) {
+            this(httpCode, body, Collections.emptyMap());
+        }
+
+        public Response(int httpCode, ResponseBody body, Map<String, String> headers) {
+            this.httpCode = httpCode;
+            this.body = body;
+            this.headers = headers;
         }
 
         public int getHttpCode() {
             return httpCode;
         }
 
+        public ResponseBody getBody() {
+            return body;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
         public byte[] getData() {
-            if (data == null) {
-                data = new byte[buffer.size()];
-                for (int i = 0; i < buffer.size(); ++i) {
-                    data[i] = buffer.get(i);
-                }
-            }
-            return data;
+            return body.getData();
         }
 
         public String getDataAsStr() {
@@ -59,59 +79,426 @@ public class Http {
         }
     }
 
+    // Response which was written straight to file, hash is computed while bytes arrive
+    public static class Download {
+        private final int httpCode;
+        private final File file;  // null if response code is not 200
+        private final long size;
+        private final String sha256;
+
+        public Download(int httpCode, File file, long size, String sha256) {
+            this.httpCode = httpCode;
+            this.file = file;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        public int getHttpCode() {
+            return httpCode;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+    }
+
     public interface Listener {
         void onResponse(Response response);
         void onError(IOException exception);
     }
 
-    public static void asyncRequest(String url, byte[] data, Map<String, String> headers, Network network, int attempts, Listener listener) {
-        asyncRequest(url, data, headers, network, attempts, listener, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    private interface Attempt {
+        Response run() throws IOException;
+    }
+
+    public static HttpFuture<Response> asyncRequest(String url, byte[] data, Map<String, String> headers, Network network, int attempts, Listener listener) {
+        return asyncRequest(url, data, headers, network, attempts, listener, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    // Cancelling returned future stops retries and disconnects current attempt, listener is not called then
+    public static HttpFuture<Response> asyncRequest(String url, byte[] data, Map<String, String> headers, Network network, int attempts, Listener listener, int connectTimeoutMs, int readTimeoutMs) {
+        final HttpFuture<Response> future = new HttpFuture<>();
+        HttpFuture.addListener(future, listener);
+        NetworkExecutor.execute(() -> {
+            try {
+                future.complete(requestWithRetries(
+                        () -> request(url, data, headers, network, connectTimeoutMs, readTimeoutMs, future),
+                        attempts,
+                        RetryPolicy.DEFAULT,
+                        future
+                ));
+            } catch (IOException e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    // Body is streamed with fixed length, so it is not held in memory by HttpURLConnection
+    public static HttpFuture<Response> asyncUpload(String url, RequestBody body, Map<String, String> headers, Network network, int attempts, Listener listener, int connectTimeoutMs, int readTimeoutMs) {
+        final HttpFuture<Response> future = new HttpFuture<>();
+        HttpFuture.addListener(future, listener);
+        NetworkExecutor.execute(() -> {
+            try {
+                Log.d(LOG_TAG, "Uploading " + body.getContentLength() + " bytes");
+                future.complete(requestWithRetries(
+                        () -> request(url, body, headers, network, connectTimeoutMs, readTimeoutMs, future),
+                        attempts,
+                        RetryPolicy.DEFAULT,
+                        future
+                ));
+            } catch (IOException e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    public static Response request(String url, byte[] data, Map<String, String> headers, Network network, int attempts) throws IOException {
+        return request(url, data, headers, network, attempts, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public static Response request(String url, byte[] data, Map<String, String> headers, Network network, int attempts, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        return requestWithRetries(() -> request(url, data, headers, network, connectTimeoutMs, readTimeoutMs), attempts, RetryPolicy.DEFAULT);
+    }
+
+    public static Response request(KeepAliveConnection connection, String url, byte[] data, Map<String, String> headers, int attempts, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        return requestWithRetries(() -> request(connection, url, data, headers, connectTimeoutMs, readTimeoutMs), attempts, RetryPolicy.DEVICE);
+    }
+
+    public static Response request(KeepAliveConnection connection, String url, RequestBody body, Map<String, String> headers, int attempts, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        return requestWithRetries(() -> {
+            Log.d(LOG_TAG, "Making request to '" + url + "' over keep-alive connection with " + body.getContentLength() + " bytes body");
+            Response response = connection.request(url, body, headers, connectTimeoutMs, readTimeoutMs);
+            Log.d(LOG_TAG, "Response code: " + response.getHttpCode() + ", data size: " + response.getBody().size() + " bytes");
+            return response;
+        }, attempts, RetryPolicy.DEVICE);
     }
 
-    public static void asyncRequest(String url, byte[] data, Map<String, String> headers, Network network, int attempts, Listener listener, int connectTimeoutMs, int readTimeoutMs) {
-        new Thread() {
-            @Override
-            public void run() {
+    // Timeouts are taken from device's RTT estimation before each attempt
+    public static Response request(KeepAliveConnection connection, RttEstimator rttEstimator, String url, byte[] data, Map<String, String> headers, int attempts) throws IOException {
+        return requestWithRetries(() -> timedRequest(connection, rttEstimator, url, data, headers), attempts, RetryPolicy.DEVICE);
+    }
+
+    // Only for idempotent GET requests: if device did not answer in usual time, the same request is sent over
+    // a separate connection, the first response wins and the other request is aborted
+    public static Response hedgedRequest(KeepAliveConnection connection, RttEstimator rttEstimator, HedgePolicy hedgePolicy, String url, Map<String, String> headers, int attempts) throws IOException {
+        return requestWithRetries(() -> {
+            final long hedgeDelayMs = hedgePolicy.getHedgeDelayMs(rttEstimator);
+            if (hedgeDelayMs < 0) {
+                return timedRequest(connection, rttEstimator, url, null, headers);
+            }
+
+            final Race race = new Race();
+            // no thread waits for the delay, hedge gets a pool thread only if it is really needed
+            final TimerTask hedge = NetworkExecutor.schedule(() -> {
+                if (!race.tryJoin()) {
+                    return;
+                }
+                if (!hedgePolicy.tryStartHedge()) {
+                    race.finish(null, null, null);
+                    return;
+                }
+                Log.d(LOG_TAG, "No response from '" + url + "' in " + hedgeDelayMs + " ms, sending hedged request");
+                KeepAliveConnection hedgeConnection = new KeepAliveConnection();
+                race.setHedgeConnection(hedgeConnection);
                 try {
-                    Response response = request(url, data, headers, network, attempts, connectTimeoutMs, readTimeoutMs);
-                    if (listener != null) {
-                        listener.onResponse(response);
-                    }
+                    Response response = request(hedgeConnection, url, null, headers, rttEstimator.getConnectTimeoutMs(), rttEstimator.getReadTimeoutMs());
+                    race.finish(response, null, () -> {
+                        Log.d(LOG_TAG, "Hedged request to '" + url + "' won");
+                        connection.abort();
+                    });
                 } catch (IOException e) {
-                    if (listener != null) {
-                        listener.onError(e);
+                    race.finish(null, e, null);
+                } finally {
+                    hedgeConnection.close();
+                    hedgePolicy.onHedgeFinished();
+                }
+            }, hedgeDelayMs);
+
+            try {
+                race.finish(timedRequest(connection, rttEstimator, url, null, headers), null, race::abortHedge);
+            } catch (KeepAliveConnection.AbortedException e) {
+                race.abortHedge();  // whole request was cancelled, hedge must not outlive it
+                race.finish(null, e, null);
+            } catch (IOException e) {
+                race.finish(null, e, null);
+            }
+            hedge.cancel();
+            return race.getResult();
+        }, attempts, RetryPolicy.DEVICE);
+    }
+
+    // Results of the first request and its hedge, the first response is taken
+    private static class Race {
+        private Response response = null;
+        private IOException exception = null;
+        private int running = 1;
+        private KeepAliveConnection hedgeConnection = null;
+        private boolean hedgeAborted = false;
+
+        // Called when hedge delay has passed, hedge joins only if the first request is still running
+        public synchronized boolean tryJoin() {
+            if (running > 0 && response == null) {
+                ++running;
+                return true;
+            }
+            return false;
+        }
+
+        // Winner's action is run under lock, so it is done before the loser gets result and connection is reused
+        public synchronized void finish(Response response, IOException exception, Runnable onWin) {
+            --running;
+            notifyAll();
+            if (response != null && this.response == null) {
+                this.response = response;
+                if (onWin != null) {
+                    onWin.run();
+                }
+            } else if (exception != null && this.exception == null) {
+                this.exception = exception;
+            }
+        }
+
+        // Hedge may register its connection after the race was decided, it is aborted right away then
+        public synchronized void setHedgeConnection(KeepAliveConnection connection) {
+            hedgeConnection = connection;
+            if (hedgeAborted) {
+                connection.abort();
+            }
+        }
+
+        public synchronized void abortHedge() {
+            hedgeAborted = true;
+            if (hedgeConnection != null) {
+                hedgeConnection.abort();
+            }
+        }
+
+        public synchronized Response getResult() throws IOException {
+            while (response == null && running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (response != null) {
+                return response;
+            }
+            throw exception != null ? exception : new InterruptedIOException("Interrupted while waiting for response");
+        }
+    }
+
+    private static Response timedRequest(KeepAliveConnection connection, RttEstimator rttEstimator, String url, byte[] data, Map<String, String> headers) throws IOException {
+        final long startET = SystemClock.elapsedRealtime();
+        try {
+            Response response = request(connection, url, data, headers, rttEstimator.getConnectTimeoutMs(), rttEstimator.getReadTimeoutMs());
+            rttEstimator.addSample(SystemClock.elapsedRealtime() - startET);
+            return response;
+        } catch (SocketTimeoutException e) {
+            rttEstimator.onTimeout();
+            throw e;
+        }
+    }
+
+    private static Response request(KeepAliveConnection connection, String url, byte[] data, Map<String, String> headers, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        Log.d(LOG_TAG, "Making request to '" + url + "' over keep-alive connection (timeouts: " + connectTimeoutMs + "/" + readTimeoutMs + " ms)");
+        Response response = connection.request(url, data, headers, connectTimeoutMs, readTimeoutMs);
+        Log.d(LOG_TAG, "Response code: " + response.getHttpCode() + ", data size: " + response.getBody().size() + " bytes");
+        return response;
+    }
+
+    // File appears only when it is downloaded completely, cancelling future stops download and removes partial file
+    public static HttpFuture<Download> asyncDownload(String url, File target, int connectTimeoutMs, int readTimeoutMs) {
+        return asyncDownload(url, target, 1, connectTimeoutMs, readTimeoutMs);
+    }
+
+    // Received bytes are kept in "<target>.part" when attempt fails or is cancelled, next attempt (even after
+    // restart of app) continues from them with Range request. Hash covers the whole assembled file.
+    public static HttpFuture<Download> asyncDownload(String url, File target, int attempts, int connectTimeoutMs, int readTimeoutMs) {
+        final HttpFuture<Download> future = new HttpFuture<>();
+        NetworkExecutor.execute(() -> {
+            try {
+                future.complete(download(url, target, attempts, connectTimeoutMs, readTimeoutMs, future));
+            } catch (IOException e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    private static Download download(String url, File target, int attempts, int connectTimeoutMs, int readTimeoutMs, HttpFuture<?> future) throws IOException {
+        final File partFile = new File(target.getPath() + ".part");
+        int spentAttempts = 0;
+        while (true) {
+            if (future.isDone()) {
+                throw new HttpFuture.CancelledException();
+            }
+            ++spentAttempts;
+            try {
+                return downloadAttempt(url, target, partFile, connectTimeoutMs, readTimeoutMs, future);
+            } catch (IOException e) {
+                if (!RetryPolicy.DOWNLOAD.shouldRetry(e, spentAttempts, attempts)) {
+                    Log.d(LOG_TAG, "Download failed with exception '" + e.getMessage() + "' after " + spentAttempts + " of " + attempts + " attempts");
+                    throw e;
+                }
+                final long delayMs = RetryPolicy.DOWNLOAD.getDelayMs(spentAttempts);
+                Log.d(LOG_TAG, "Download interrupted with exception '" + e.getMessage() + "', " + partFile.length()
+                        + " bytes are kept, resuming in " + delayMs + " ms");
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private static Download downloadAttempt(String url, File target, File partFile, int connectTimeoutMs, int readTimeoutMs, HttpFuture<?> future) throws IOException {
+        final long partSize = partFile.length();  // 0 if file does not exist
+        Log.d(LOG_TAG, "Downloading '" + url + "' to " + target + (partSize > 0 ? ", resuming from byte " + partSize : ""));
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        future.onCancel(connection::disconnect);
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        connection.setUseCaches(false);
+        if (partSize > 0) {
+            connection.setRequestProperty("Range", "bytes=" + partSize + "-");
+        }
+        try {
+            final int httpCode = connection.getResponseCode();
+            final boolean resumed;
+            final long expectedSize;
+            if (httpCode == HttpURLConnection.HTTP_PARTIAL && partSize > 0) {
+                expectedSize = parseContentRangeTotal(connection.getHeaderField("Content-Range"), partSize);
+                resumed = true;
+            } else if (httpCode == HttpURLConnection.HTTP_OK) {
+                expectedSize = connection.getContentLength();  // -1 if unknown
+                resumed = false;
+            } else {
+                if (httpCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                    // Part is not a prefix of what server has now, next attempt starts from scratch
+                    partFile.delete();
+                    throw new IOException("Server could not resume download from byte " + partSize);
+                }
+                Log.d(LOG_TAG, "Response code: " + httpCode);
+                return new Download(httpCode, null, 0, null);
+            }
+
+            final MessageDigest digest = Utils.newSha256Digest();
+            final ByteBuffer buffer = ByteBuffer.allocate(DOWNLOAD_BUFFER_SIZE);
+            long size = 0;
+            try (FileChannel out = new FileOutputStream(partFile, resumed).getChannel()) {
+                if (resumed) {
+                    // Already stored bytes are hashed again, it is much cheaper than downloading them
+                    try (FileChannel stored = new FileInputStream(partFile).getChannel()) {
+                        while (stored.read(buffer) != -1) {
+                            buffer.flip();
+                            digest.update(buffer.array(), 0, buffer.limit());
+                            size += buffer.limit();
+                            buffer.clear();
+                        }
                     }
                 }
+                try (ReadableByteChannel in = Channels.newChannel(connection.getInputStream())) {
+                    while (in.read(buffer) != -1) {
+                        buffer.flip();
+                        digest.update(buffer.array(), 0, buffer.limit());
+                        size += buffer.limit();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+            }
+            if (expectedSize >= 0 && size != expectedSize) {
+                if (size > expectedSize) {
+                    partFile.delete();
+                }
+                throw new EOFException("Got " + size + " bytes instead of " + expectedSize);
             }
-        }.start();
+            if (!partFile.renameTo(target)) {
+                partFile.delete();
+                throw new IOException("Could not move downloaded file to " + target);
+            }
+            Log.d(LOG_TAG, "Downloaded " + size + " bytes" + (resumed ? " (" + (size - partSize) + " after resume)" : ""));
+            return new Download(HttpURLConnection.HTTP_OK, target, size, Utils.hashToHex(digest.digest()));
+        } finally {
+            connection.disconnect();
+        }
     }
 
-    public static Response request(String url, byte[] data, Map<String, String> headers, Network network, int attempts) throws IOException {
-        return request(url, data, headers, network, attempts, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    // "bytes 1000-4999/5000" -> 5000, range should start exactly where stored part ends
+    private static long parseContentRangeTotal(String contentRange, long expectedStart) throws IOException {
+        if (contentRange == null || !contentRange.startsWith("bytes " + expectedStart + "-")) {
+            throw new IOException("Unexpected Content-Range '" + contentRange + "' when resuming from byte " + expectedStart);
+        }
+        final String total = contentRange.substring(contentRange.indexOf('/') + 1);
+        if (total.equals("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad total size in Content-Range '" + contentRange + "'");
+        }
     }
 
-    public static Response request(String url, byte[] data, Map<String, String> headers, Network network, int attempts, int connectTimeoutMs, int readTimeoutMs) throws IOException {
-        Http.Response response = new Http.Response(0);
+    private static Response requestWithRetries(Attempt attempt, int attempts, RetryPolicy retryPolicy) throws IOException {
+        return requestWithRetries(attempt, attempts, retryPolicy, null);
+    }
+
+    private static Response requestWithRetries(Attempt attempt, int attempts, RetryPolicy retryPolicy, HttpFuture<?> future) throws IOException {
+        Http.Response response = null;
         int spentAttempts = 0;
-        while (response.getHttpCode() != HttpURLConnection.HTTP_OK && spentAttempts++ < attempts) {
+        while ((response == null || RetryPolicy.shouldRetry(response.getHttpCode())) && spentAttempts++ < attempts) {
+            if (future != null && future.isDone()) {
+                throw new HttpFuture.CancelledException();
+            }
             try {
-                response = request(url, data, headers, network, connectTimeoutMs, readTimeoutMs);
+                response = attempt.run();
+                retryPolicy.onSuccess();
             } catch (IOException e) {
-                if (spentAttempts == attempts) {
-                    Log.d(LOG_TAG, "Failed with exception '" + e.getMessage() + "', all " + attempts + " attempts spent");
+                if (!retryPolicy.shouldRetry(e, spentAttempts, attempts)) {
+                    Log.d(LOG_TAG, "Failed with exception '" + e.getMessage() + "', not retrying after " + spentAttempts + " of " + attempts + " attempts");
                     throw e;
                 }
-                Log.d(LOG_TAG, "Skipping exception '" + e.getMessage() + "' because only " + spentAttempts + " of " + attempts + " attempts spent");
+                final long delayMs = retryPolicy.getDelayMs(spentAttempts);
+                Log.d(LOG_TAG, "Skipping exception '" + e.getMessage() + "' because only " + spentAttempts + " of " + attempts + " attempts spent, retrying in " + delayMs + " ms");
                 try {
-                    Thread.sleep(PAUSE_BETWEEN_RETRIES_MS);
+                    Thread.sleep(delayMs);
                 } catch (InterruptedException ignored) {
                 }
             }
         }
-        return response;
+        return response != null ? response : new Http.Response(0);  // no attempts were allowed
     }
 
     public static Response request(String url, byte[] data, Map<String, String> headers, Network network, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        return request(url, data, headers, network, connectTimeoutMs, readTimeoutMs, null);
+    }
+
+    private static Response request(String url, byte[] data, Map<String, String> headers, Network network, int connectTimeoutMs, int readTimeoutMs, HttpFuture<?> future) throws IOException {
+        if (data != null) {
+            if (data.length > MAX_REQUEST_SIZE_FOR_LOGGING) {
+                Log.d(LOG_TAG, "Request data too big for logging: " + data.length + " bytes");
+            } else {
+                Log.d(LOG_TAG, "Request data:  " + new String(data, StandardCharsets.UTF_8));
+            }
+        }
+        return request(url, RequestBody.of(data), headers, network, connectTimeoutMs, readTimeoutMs, future);
+    }
+
+    private static Response request(String url, RequestBody body, Map<String, String> headers, Network network, int connectTimeoutMs, int readTimeoutMs, HttpFuture<?> future) throws IOException {
         Log.d(LOG_TAG, "Making request to '" + url + "'");
         URL req = new URL(url);
         HttpURLConnection connection;
@@ -120,6 +507,9 @@ public class Http {
         } else {
             connection = (HttpURLConnection)req.openConnection();
         }
+        if (future != null) {
+            future.onCancel(connection::disconnect);  // disconnect from another thread breaks blocking IO
+        }
 
         connection.setConnectTimeout(connectTimeoutMs);
         connection.setReadTimeout(readTimeoutMs);
@@ -131,30 +521,24 @@ public class Http {
             }
         }
 
-        if (data != null) {
+        if (body != null) {
             connection.setRequestMethod("POST");
             connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.getContentLength());  // otherwise whole body is buffered before sending
             OutputStream os = connection.getOutputStream();
-            os.write(data, 0, data.length);
+            body.writeTo(os);
             os.close();
-            if (data.length > MAX_REQUEST_SIZE_FOR_LOGGING) {
-                Log.d(LOG_TAG, "Request data too big for logging: " + data.length + " bytes");
-            } else {
-                Log.d(LOG_TAG, "Request data:  " + new String(data, StandardCharsets.UTF_8));
-            }
         } else {
             connection.setRequestMethod("GET");
         }
 
         int httpCode = connection.getResponseCode();
-        Response response = new Response(httpCode);
+        final Map<String, String> responseHeaders = getHeaders(connection);
+        Response response;
         if (httpCode == HttpURLConnection.HTTP_OK) {
+            response = new Response(httpCode, new ResponseBody(connection.getContentLength()), responseHeaders);
             InputStream is = connection.getInputStream();
-            int n;
-            byte[] buffer = new byte[1024];
-            while ((n = is.read(buffer)) != -1) {
-                response.appendData(buffer, n);
-            }
+            response.getBody().readFrom(is);
             is.close();
 
             final byte[] responseData = response.getData();
@@ -169,10 +553,26 @@ public class Http {
                 }
             }
         } else {
+            response = new Response(httpCode, new ResponseBody(0), responseHeaders);
             Log.d(LOG_TAG, "Response code: " + httpCode);
         }
 
         connection.disconnect();
         return response;
     }
+
+    private static Map<String, String> getHeaders(HttpURLConnection connection) {
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 0; ; ++i) {
+            final String value = connection.getHeaderField(i);
+            if (value == null) {
+                break;
+            }
+            final String name = connection.getHeaderFieldKey(i);
+            if (name != null) {  // status line has no name
+                headers.put(name.toLowerCase(Locale.ROOT), value);
+            }
+        }
+        return headers;
+    }
 }
@@ -0,0 +1,399 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// Handle of asynchronous network operation: can be cancelled (which aborts its socket), limited by deadline
+// and composed with other operations. CompletableFuture is not used because it needs API 24.
+public class HttpFuture<T> {
+    // Cancelled timer tasks stay in timer queue (holding their futures) until their time comes
+    private static final int PURGE_CANCELLED_DEADLINES_EVERY = 64;
+
+    private static Timer deadlinesTimer = null;
+    private static int cancelledDeadlines = 0;
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+        void onError(IOException exception);
+    }
+
+    public interface Continuation<T, U> {
+        HttpFuture<U> apply(T result) throws IOException;
+    }
+
+    public static class CancelledException extends InterruptedIOException {
+        public CancelledException() {
+            super("Operation was cancelled");
+        }
+    }
+
+    public static class DeadlineExceededException extends InterruptedIOException {
+        public DeadlineExceededException(long timeoutMs) {
+            super("Operation did not finish in " + timeoutMs + " ms");
+        }
+    }
+
+    private enum State {
+        PENDING,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED
+    }
+
+    private State state = State.PENDING;
+    private T result = null;
+    private IOException exception = null;
+    private final List<Callback<T>> callbacks = new ArrayList<>();
+    private final List<Runnable> cancelActions = new ArrayList<>();
+    private final List<Runnable> doneActions = new ArrayList<>();
+
+    public static <T> HttpFuture<T> succeeded(T result) {
+        HttpFuture<T> future = new HttpFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    public boolean complete(T result) {
+        final List<Callback<T>> toCall;
+        final List<Runnable> done;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                return false;
+            }
+            state = State.SUCCEEDED;
+            this.result = result;
+            toCall = takeCallbacks();
+            done = takeDoneActions();
+        }
+        runAll(done);
+        for (Callback<T> callback : toCall) {
+            callback.onSuccess(result);
+        }
+        return true;
+    }
+
+    public boolean fail(IOException exception) {
+        final List<Callback<T>> toCall;
+        final List<Runnable> done;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                return false;
+            }
+            state = State.FAILED;
+            this.exception = exception;
+            toCall = takeCallbacks();
+            done = takeDoneActions();
+        }
+        runAll(done);
+        for (Callback<T> callback : toCall) {
+            callback.onError(exception);
+        }
+        return true;
+    }
+
+    // Callbacks are not called for cancelled operation, so screen which was left does not touch its views
+    public boolean cancel() {
+        final List<Runnable> actions;
+        final List<Runnable> done;
+        synchronized (this) {
+            if (state != State.PENDING) {
+                return false;
+            }
+            state = State.CANCELLED;
+            exception = new CancelledException();
+            callbacks.clear();
+            actions = takeCancelActions();
+            done = takeDoneActions();
+        }
+        runAll(done);
+        runAll(actions);
+        return true;
+    }
+
+    // Unlike cancel, callbacks get DeadlineExceededException. They are called before cancel actions,
+    // so futures made by then/all/any fail with it too instead of being cancelled. Timer task is cancelled
+    // when operation finishes earlier.
+    public HttpFuture<T> withDeadline(long timeoutMs) {
+        final TimerTask deadline = new TimerTask() {
+            @Override
+            public void run() {
+                final List<Runnable> actions;
+                final List<Callback<T>> toCall;
+                final List<Runnable> done;
+                final IOException deadlineException = new DeadlineExceededException(timeoutMs);
+                synchronized (HttpFuture.this) {
+                    if (state != State.PENDING) {
+                        return;
+                    }
+                    state = State.FAILED;
+                    exception = deadlineException;
+                    actions = takeCancelActions();
+                    toCall = takeCallbacks();
+                    done = takeDoneActions();
+                }
+                runAll(done);
+                for (Callback<T> callback : toCall) {
+                    callback.onError(deadlineException);
+                }
+                runAll(actions);
+            }
+        };
+        scheduleDeadline(deadline, timeoutMs);
+        onDone(() -> cancelDeadline(deadline));
+        return this;
+    }
+
+    // Action which stops producing of result (removes request from queue, aborts socket etc.)
+    public void onCancel(Runnable action) {
+        synchronized (this) {
+            if (state == State.PENDING) {
+                cancelActions.add(action);
+                return;
+            }
+            if (state != State.CANCELLED && !(exception instanceof DeadlineExceededException)) {
+                return;
+            }
+        }
+        action.run();
+    }
+
+    public void addCallback(Callback<T> callback) {
+        final boolean succeeded;
+        synchronized (this) {
+            if (state == State.PENDING) {
+                callbacks.add(callback);
+                return;
+            }
+            if (state == State.CANCELLED) {
+                return;
+            }
+            succeeded = state == State.SUCCEEDED;
+        }
+        if (succeeded) {
+            callback.onSuccess(result);
+        } else {
+            callback.onError(exception);
+        }
+    }
+
+    // Action which is run once operation is finished in any way, including cancel and deadline
+    private void onDone(Runnable action) {
+        synchronized (this) {
+            if (state == State.PENDING) {
+                doneActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    public static void addListener(HttpFuture<Http.Response> future, Http.Listener listener) {
+        if (listener == null) {
+            return;
+        }
+        future.addCallback(new Callback<Http.Response>() {
+            @Override
+            public void onSuccess(Http.Response result) {
+                listener.onResponse(result);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                listener.onError(exception);
+            }
+        });
+    }
+
+    public synchronized boolean isDone() {
+        return state != State.PENDING;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    // Blocks until operation is finished, should not be called from UI thread
+    public synchronized T get() throws IOException {
+        while (state == State.PENDING) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for result");
+            }
+        }
+        if (state == State.SUCCEEDED) {
+            return result;
+        }
+        throw exception;
+    }
+
+    // Next operation is started when this one succeeds, cancelling result cancels whichever of them is running
+    public <U> HttpFuture<U> then(Continuation<T, U> continuation) {
+        final HttpFuture<U> next = new HttpFuture<>();
+        next.onCancel(this::cancel);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                try {
+                    next.follow(continuation.apply(result));
+                } catch (IOException e) {
+                    next.fail(e);
+                }
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                next.fail(exception);
+            }
+        });
+        onCancel(next::cancel);
+        return next;
+    }
+
+    // Succeeds with results in the same order when all operations succeed, fails on the first failure
+    @SafeVarargs
+    public static <T> HttpFuture<List<T>> all(HttpFuture<T>... futures) {
+        return all(Arrays.asList(futures));
+    }
+
+    public static <T> HttpFuture<List<T>> all(List<HttpFuture<T>> futures) {
+        final HttpFuture<List<T>> combined = new HttpFuture<>();
+        final List<T> results = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); ++i) {
+            results.add(null);
+        }
+        final int[] left = {futures.size()};
+        if (futures.isEmpty()) {
+            combined.complete(results);
+        }
+        for (int i = 0; i < futures.size(); ++i) {
+            final int index = i;
+            final HttpFuture<T> future = futures.get(i);
+            combined.onCancel(future::cancel);
+            future.addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    synchronized (results) {
+                        results.set(index, result);
+                        if (--left[0] > 0) {
+                            return;
+                        }
+                    }
+                    combined.complete(results);
+                }
+
+                @Override
+                public void onError(IOException exception) {
+                    if (combined.fail(exception)) {
+                        cancelAll(futures);
+                    }
+                }
+            });
+            future.onCancel(combined::cancel);
+        }
+        return combined;
+    }
+
+    // Succeeds with the first successful result and cancels the rest, fails when all operations fail
+    @SafeVarargs
+    public static <T> HttpFuture<T> any(HttpFuture<T>... futures) {
+        return any(Arrays.asList(futures));
+    }
+
+    public static <T> HttpFuture<T> any(List<HttpFuture<T>> futures) {
+        final HttpFuture<T> combined = new HttpFuture<>();
+        final int[] left = {futures.size()};
+        if (futures.isEmpty()) {
+            combined.fail(new IOException("No operations to wait for"));
+        }
+        for (HttpFuture<T> future : futures) {
+            combined.onCancel(future::cancel);
+            future.addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    if (combined.complete(result)) {
+                        cancelAll(futures);
+                    }
+                }
+
+                @Override
+                public void onError(IOException exception) {
+                    synchronized (left) {
+                        if (--left[0] > 0) {
+                            return;
+                        }
+                    }
+                    combined.fail(exception);
+                }
+            });
+        }
+        return combined;
+    }
+
+    private static <T> void cancelAll(List<HttpFuture<T>> futures) {
+        for (HttpFuture<T> future : futures) {
+            future.cancel();
+        }
+    }
+
+    private void follow(HttpFuture<T> other) {
+        onCancel(other::cancel);
+        other.addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                complete(result);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                fail(exception);
+            }
+        });
+    }
+
+    private List<Callback<T>> takeCallbacks() {
+        List<Callback<T>> taken = new ArrayList<>(callbacks);
+        callbacks.clear();
+        cancelActions.clear();
+        notifyAll();
+        return taken;
+    }
+
+    private List<Runnable> takeCancelActions() {
+        List<Runnable> taken = new ArrayList<>(cancelActions);
+        cancelActions.clear();
+        notifyAll();
+        return taken;
+    }
+
+    private List<Runnable> takeDoneActions() {
+        List<Runnable> taken = new ArrayList<>(doneActions);
+        doneActions.clear();
+        return taken;
+    }
+
+    private static void runAll(List<Runnable> actions) {
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    private static synchronized void scheduleDeadline(TimerTask task, long timeoutMs) {
+        if (deadlinesTimer == null) {
+            deadlinesTimer = new Timer("http-deadlines", true);
+        }
+        deadlinesTimer.schedule(task, timeoutMs);
+    }
+
+    private static synchronized void cancelDeadline(TimerTask task) {
+        if (task.cancel() && ++cancelledDeadlines >= PURGE_CANCELLED_DEADLINES_EVERY) {
+            deadlinesTimer.purge();
+            cancelledDeadlines = 0;
+        }
+    }
+}
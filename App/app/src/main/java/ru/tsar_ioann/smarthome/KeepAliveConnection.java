@@ -0,0 +1,355 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Persistent HTTP/1.1 connection to one device, is not thread safe (DeviceMailbox runs one request at a time).
+// Firmware built with Arduino core 2.x answers with "Connection: close", so socket is reused only by devices
+// with firmware built on core 3.0 or newer; for others each request still opens a new connection.
+public class KeepAliveConnection {
+    private static final String LOG_TAG = "KeepAliveConnection";
+    private static final long MAX_IDLE_MS = 10000;
+    private static final int MAX_HEADER_LINE_LENGTH = 8192;
+    private static final int LOG_COUNTERS_EVERY = 100;  // requests
+
+    private static final AtomicLong requestsCount = new AtomicLong();
+    private static final AtomicLong reusedCount = new AtomicLong();
+    private static final AtomicLong staleReconnectsCount = new AtomicLong();
+
+    private volatile Socket socket = null;
+    private volatile boolean aborted = false;
+    private InputStream in = null;
+    private OutputStream out = null;
+    private String host = null;
+    private int port = 0;
+    private long lastUsedMs = 0;
+
+    // Thrown when reused connection appears to be closed by device before it answered anything,
+    // only GET requests are sent again then
+    private static class StaleConnectionException extends IOException {
+        public StaleConnectionException(String message) {
+            super(message);
+        }
+    }
+
+    // Thrown when request was aborted from another thread, must not be retried
+    public static class AbortedException extends InterruptedIOException {
+        public AbortedException() {
+            super("Request was aborted");
+        }
+    }
+
+    public static long getRequestsCount() {
+        return requestsCount.get();
+    }
+
+    public static long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    public static long getStaleReconnectsCount() {
+        return staleReconnectsCount.get();
+    }
+
+    public Http.Response request(String url, byte[] data, Map<String, String> headers, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        return request(url, RequestBody.of(data), headers, connectTimeoutMs, readTimeoutMs);
+    }
+
+    public Http.Response request(String url, RequestBody body, Map<String, String> headers, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        URL req = new URL(url);
+        final String reqHost = req.getHost();
+        final int reqPort = req.getPort() != -1 ? req.getPort() : Http.DEFAULT_PORT;
+        if (requestsCount.incrementAndGet() % LOG_COUNTERS_EVERY == 0) {
+            Log.d(LOG_TAG, "Reused connections: " + reusedCount.get() + " of " + requestsCount.get()
+                    + " requests, stale reconnects: " + staleReconnectsCount.get());
+        }
+        if (aborted) {
+            throw new AbortedException();
+        }
+
+        boolean reused = socket != null
+                && reqHost.equals(host) && reqPort == port
+                && System.currentTimeMillis() - lastUsedMs < MAX_IDLE_MS
+                && in.available() == 0;  // unexpected bytes mean that previous exchange is broken
+        try {
+            if (!reused) {
+                connect(reqHost, reqPort, connectTimeoutMs);
+            }
+            try {
+                return exchange(req, body, headers, readTimeoutMs, reused);
+            } catch (StaleConnectionException e) {
+                if (aborted) {
+                    throw new AbortedException();
+                }
+                if (body != null) {
+                    // device may have run POST before closing the connection, resending it is not safe
+                    throw e;
+                }
+                Log.d(LOG_TAG, "Connection to " + host + ":" + port + " was closed by device, reconnecting");
+                staleReconnectsCount.incrementAndGet();
+                connect(reqHost, reqPort, connectTimeoutMs);
+                return exchange(req, body, headers, readTimeoutMs, false);
+            }
+        } catch (IOException e) {
+            close();
+            if (aborted) {
+                throw new AbortedException();
+            }
+            throw e;
+        }
+    }
+
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    // May be called from another thread, makes request which is in progress (and all next ones until
+    // clearAborted is called) fail
+    public void abort() {
+        aborted = true;
+        Socket currentSocket = socket;
+        if (currentSocket != null) {
+            try {
+                currentSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void clearAborted() {
+        aborted = false;
+    }
+
+    // Socket is published before connecting, so abort() from another thread can close it while connect is waiting
+    private void connect(String host, int port, int connectTimeoutMs) throws IOException {
+        close();
+        Socket newSocket = new Socket();
+        socket = newSocket;
+        if (aborted) {
+            close();
+            throw new AbortedException();
+        }
+        newSocket.setTcpNoDelay(true);
+        newSocket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        if (aborted) {
+            close();
+            throw new AbortedException();
+        }
+        in = new BufferedInputStream(newSocket.getInputStream());
+        out = newSocket.getOutputStream();
+        this.host = host;
+        this.port = port;
+    }
+
+    private Http.Response exchange(URL req, RequestBody requestBody, Map<String, String> headers, int readTimeoutMs, boolean reused) throws IOException {
+        socket.setSoTimeout(readTimeoutMs);
+
+        try {
+            out.write(buildRequestHead(req, host, port, requestBody != null ? requestBody.getContentLength() : -1, headers));
+            if (requestBody != null) {
+                requestBody.writeTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            if (reused) {
+                throw new StaleConnectionException(e.getMessage());
+            }
+            throw e;
+        }
+
+        String statusLine;
+        try {
+            statusLine = readLine();
+        } catch (SocketTimeoutException e) {
+            throw e;  // device may have received request, so it is not safe to repeat it
+        } catch (IOException e) {
+            if (reused) {
+                throw new StaleConnectionException(e.getMessage());
+            }
+            throw e;
+        }
+        if (reused) {
+            reusedCount.incrementAndGet();
+        }
+
+        final int httpCode = parseStatusCode(statusLine);
+        Map<String, String> responseHeaders = new HashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                responseHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+
+        boolean keepAlive = !"close".equalsIgnoreCase(responseHeaders.get("connection"))
+                && statusLine.startsWith("HTTP/1.1");
+        ResponseBody body;
+        final String contentLength = responseHeaders.get("content-length");
+        if ("chunked".equalsIgnoreCase(responseHeaders.get("transfer-encoding"))) {
+            body = readChunkedBody();
+        } else if (contentLength != null) {
+            int length;
+            try {
+                length = Integer.parseInt(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length: " + contentLength);
+            }
+            body = new ResponseBody(length);
+            body.readFrom(new BoundedInputStream(in, length));
+            if (body.size() != length) {
+                throw new EOFException("Connection closed before whole body was received");
+            }
+        } else {
+            body = new ResponseBody();
+            body.readFrom(in);
+            keepAlive = false;
+        }
+
+        if (keepAlive) {
+            lastUsedMs = System.currentTimeMillis();
+        } else {
+            close();
+        }
+        return new Http.Response(httpCode, body);
+    }
+
+    // Also used by NioHttpClient, so both transports send the same requests
+    // Content length is -1 for GET requests
+    static byte[] buildRequestHead(URL req, String host, int port, long contentLength, Map<String, String> headers) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(contentLength >= 0 ? "POST " : "GET ").append(req.getFile().isEmpty() ? "/" : req.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append(port != Http.DEFAULT_PORT ? ":" + port : "").append("\r\n");
+        head.append("Connection: keep-alive\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase("Connection") || header.getKey().equalsIgnoreCase("Host")) {
+                    continue;  // already written above
+                }
+                head.append(header.getKey()).append(": ").append(header.getValue().replaceAll("[\r\n]", "")).append("\r\n");
+            }
+        }
+        if (contentLength >= 0) {
+            if (headers == null || !headers.containsKey("Content-Type")) {
+                head.append("Content-Type: application/x-www-form-urlencoded\r\n");
+            }
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ResponseBody readChunkedBody() throws IOException {
+        ResponseBody body = new ResponseBody();
+        while (true) {
+            String sizeLine = readLine();
+            int semicolon = sizeLine.indexOf(';');
+            int chunkSize;
+            try {
+                chunkSize = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + sizeLine);
+            }
+            if (chunkSize == 0) {
+                while (!readLine().isEmpty()) {
+                    // skip trailers
+                }
+                return body;
+            }
+            final int sizeBefore = body.size();
+            body.readFrom(new BoundedInputStream(in, chunkSize));
+            if (body.size() - sizeBefore != chunkSize) {
+                throw new EOFException("Connection closed inside of chunk");
+            }
+            readLine();  // CRLF after chunk data
+        }
+    }
+
+    static int parseStatusCode(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed by device");
+            }
+            if (line.size() >= MAX_HEADER_LINE_LENGTH) {
+                throw new IOException("Too long line in response head");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private int remaining;
+
+        public BoundedInputStream(InputStream in, int limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                --remaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Sends multicast bursts ("N packets with interval T", interval may grow after each packet) from one socket
+// and one thread, which are kept between bursts. Packets are encoded once and the same DatagramPacket is
+// sent again and again.
+public class MulticastSender {
+    private static final String LOG_TAG = "MulticastSender";
+    private static final String THREAD_NAME = "multicast-sender";
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    public static final Packet SCAN_REQUEST = new Packet(
+            UdpSettings.UDP_MULTICAST_IP,
+            UdpSettings.UDP_MULTICAST_PORT,
+            UdpSettings.UDP_SCAN_REQUEST
+    );
+
+    private static Sender sender = null;
+
+    public interface BurstListener {
+        // Called from sender thread one interval after last packet, so devices have time to answer it.
+        // Not called for cancelled burst.
+        void onBurstFinished(int sentPackets);
+    }
+
+    public static class Packet {
+        private final String ip;
+        private final int port;
+        private final byte[] data;
+        private DatagramPacket packet = null;  // only accessed from sender thread
+
+        public Packet(String ip, int port, String message) {
+            this.ip = ip;
+            this.port = port;
+            this.data = message.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private DatagramPacket get() throws IOException {
+            if (packet == null) {
+                packet = new DatagramPacket(data, data.length, InetAddress.getByName(ip), port);
+            }
+            return packet;
+        }
+    }
+
+    public static class Burst {
+        private final Sender sender;
+        private final Packet packet;
+        private final int count;
+        private final long maxIntervalMs;
+        private final double backoffMultiplier;
+        private final BurstListener listener;
+
+        // Only accessed from sender thread
+        private int sentPackets = 0;
+        private long intervalMs;
+
+        private ScheduledFuture<?> nextStep = null;
+        private boolean cancelled = false;
+        private boolean finished = false;
+
+        private Burst(Sender sender, Packet packet, int count, long firstIntervalMs, long maxIntervalMs, double backoffMultiplier, BurstListener listener) {
+            this.sender = sender;
+            this.packet = packet;
+            this.count = count;
+            this.intervalMs = firstIntervalMs;
+            this.maxIntervalMs = maxIntervalMs;
+            this.backoffMultiplier = backoffMultiplier;
+            this.listener = listener;
+        }
+
+        public synchronized boolean isDone() {
+            return cancelled || finished;
+        }
+
+        // Packets which are not sent yet are not sent at all, listener is not called
+        public synchronized void cancel() {
+            if (cancelled || finished) {
+                return;
+            }
+            cancelled = true;
+            if (nextStep != null) {
+                nextStep.cancel(false);
+                nextStep = null;
+            }
+            Log.d(LOG_TAG, "Burst cancelled after " + sentPackets + " of " + count + " packets");
+        }
+
+        private synchronized void scheduleStep(long delayMs) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                nextStep = sender.executor.schedule(this::step, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                cancelled = true;  // sender was shut down
+            }
+        }
+
+        private void step() {
+            if (sentPackets >= count) {
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    finished = true;
+                    nextStep = null;
+                }
+                if (listener != null) {
+                    listener.onBurstFinished(sentPackets);
+                }
+                return;
+            }
+            if (isDone()) {
+                return;
+            }
+            sender.send(packet);
+            ++sentPackets;
+            scheduleStep(intervalMs);
+            intervalMs = Math.min(maxIntervalMs, (long) (intervalMs * backoffMultiplier));
+        }
+    }
+
+    private static class Sender {
+        private final ScheduledThreadPoolExecutor executor;
+        private DatagramSocket socket = null;  // only accessed from executor thread
+
+        public Sender() {
+            executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);  // socket is kept, but thread is not while there are no bursts
+        }
+
+        public void send(Packet packet) {
+            try {
+                if (socket == null) {
+                    socket = new DatagramSocket();
+                }
+                socket.send(packet.get());
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Multicast failed: " + e.getMessage());
+            }
+        }
+
+        public void close() {
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+        }
+    }
+
+    public static Burst send(Packet packet) {
+        return scheduleBurst(packet, 1, 0, null);
+    }
+
+    // First packet is sent at once, listener may be null
+    public static Burst scheduleBurst(Packet packet, int count, long intervalMs, BurstListener listener) {
+        return scheduleBurst(packet, count, intervalMs, intervalMs, 1.0, listener);
+    }
+
+    // Interval after each packet is multiplied by backoffMultiplier until it reaches maxIntervalMs
+    public static synchronized Burst scheduleBurst(Packet packet, int count, long firstIntervalMs, long maxIntervalMs, double backoffMultiplier, BurstListener listener) {
+        if (sender == null) {
+            sender = new Sender();
+        }
+        final Burst burst = new Burst(sender, packet, count, firstIntervalMs, maxIntervalMs, backoffMultiplier, listener);
+        burst.scheduleStep(0);
+        return burst;
+    }
+
+    // Bursts in progress are stopped, new sender is created on next scheduleBurst()
+    public static synchronized void shutdown() {
+        if (sender != null) {
+            final Sender closingSender = sender;
+            // Shutdown drops queued tasks, so executor is shut down by the task which closes socket
+            closingSender.executor.execute(() -> {
+                closingSender.close();
+                closingSender.executor.shutdown();
+            });
+            sender = null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// multipart/form-data body with one file: preamble, file content and epilogue are streamed straight to socket
+// when request is written, content length is known in advance so no transport has to buffer the body
+public class MultipartBody implements RequestBody {
+    private static final int PROGRESS_STEP_BYTES = 16 * 1024;
+    private static final int CHANNEL_BUFFER_SIZE = 16 * 1024;
+
+    public interface ProgressListener {
+        void onProgress(long sentBytes, long totalBytes);
+    }
+
+    private final String boundary;
+    private final byte[] head;
+    private final byte[] tail;
+
+    // Exactly one of sources is set
+    private final File file;
+    private final FileChannel fileChannel;
+    private final ReadableByteChannel channel;
+    private final long size;
+    private boolean channelConsumed = false;
+
+    private ProgressListener progressListener = null;
+
+    public MultipartBody(String fieldName, String fileName, File file) {
+        this(fieldName, fileName, file, null, null, file.length());
+    }
+
+    // File channel is read from its start every time body is written, channel is not closed
+    public MultipartBody(String fieldName, String fileName, FileChannel fileChannel) throws IOException {
+        this(fieldName, fileName, null, fileChannel, null, fileChannel.size());
+    }
+
+    // Arbitrary channel can be read only once, so request with such body can not be resent
+    public MultipartBody(String fieldName, String fileName, ReadableByteChannel channel, long size) {
+        this(fieldName, fileName, null, null, channel, size);
+    }
+
+    private MultipartBody(String fieldName, String fileName, File file, FileChannel fileChannel, ReadableByteChannel channel, long size) {
+        this.boundary = "*****" + System.currentTimeMillis() + "*****";
+        this.head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + fieldName + "\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                //+ "Content-Transfer-Encoding: binary\r\n"  // ESP fails to parse with this line
+                + "\r\n").getBytes(StandardCharsets.UTF_8);
+        this.tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        this.file = file;
+        this.fileChannel = fileChannel;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    // Called from network thread
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    @Override
+    public long getContentLength() {
+        return head.length + size + tail.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final ProgressOutputStream progressOut = new ProgressOutputStream(out);
+        progressOut.write(head);
+        if (file != null) {
+            try (FileChannel source = new FileInputStream(file).getChannel()) {
+                transfer(source, progressOut);
+            }
+        } else if (fileChannel != null) {
+            transfer(fileChannel, progressOut);
+        } else {
+            if (channelConsumed) {
+                throw new IOException("Body with channel source can not be written twice");
+            }
+            channelConsumed = true;
+            copy(channel, progressOut);
+        }
+        progressOut.write(tail);
+        progressOut.flush();
+    }
+
+    private void transfer(FileChannel source, OutputStream out) throws IOException {
+        final WritableByteChannel outChannel = Channels.newChannel(out);
+        long position = 0;
+        while (position < size) {
+            final long n = source.transferTo(position, size - position, outChannel);
+            if (n == 0 && position >= source.size()) {
+                throw new IOException("File ended " + (size - position) + " bytes before declared size");
+            }
+            position += n;
+        }
+    }
+
+    private void copy(ReadableByteChannel source, OutputStream out) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+        long left = size;
+        while (left > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), left));
+            final int n = source.read(buffer);
+            if (n < 0) {
+                throw new IOException("Channel ended " + left + " bytes before declared size");
+            }
+            out.write(buffer.array(), 0, n);
+            left -= n;
+        }
+    }
+
+    private class ProgressOutputStream extends FilterOutputStream {
+        private final long totalBytes = getContentLength();
+        private long sentBytes = 0;
+        private long reportedBytes = 0;
+
+        public ProgressOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            onSent(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            onSent(len);
+        }
+
+        private void onSent(int n) {
+            sentBytes += n;
+            if (progressListener != null && (sentBytes - reportedBytes >= PROGRESS_STEP_BYTES || sentBytes == totalBytes)) {
+                reportedBytes = sentBytes;
+                progressListener.onProgress(sentBytes, totalBytes);
+            }
+        }
+    }
+}
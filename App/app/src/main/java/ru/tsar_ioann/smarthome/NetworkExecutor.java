@@ -0,0 +1,86 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NetworkExecutor {
+    private static final String LOG_TAG = "NetworkExecutor";
+    private static final String THREAD_NAME_PREFIX = "network-";
+
+    private static final int MAX_CONCURRENT_TASKS = 8;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static ThreadPoolExecutor executor = null;
+    private static Timer delayedTasksTimer = null;
+
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor result = new ThreadPoolExecutor(
+                MAX_CONCURRENT_TASKS,
+                MAX_CONCURRENT_TASKS,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                threadFactory
+        );
+        result.allowCoreThreadTimeOut(true);  // no threads are kept while app is idle
+        return result;
+    }
+
+    public static synchronized void execute(Runnable task) {
+        if (executor == null) {
+            executor = createExecutor();
+        }
+        executor.execute(task);
+    }
+
+    // Task is given to executor only after the delay, so no pool thread is kept waiting for it.
+    // Cancelling returned timer task drops task which was not submitted yet.
+    public static synchronized TimerTask schedule(Runnable task, long delayMs) {
+        if (delayedTasksTimer == null) {
+            delayedTasksTimer = new Timer("network-delayed-tasks", true);
+        }
+        final TimerTask timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        };
+        delayedTasksTimer.schedule(timerTask, delayMs);
+        return timerTask;
+    }
+
+    public static synchronized int getQueueDepth() {
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    public static synchronized int getActiveCount() {
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    // Already started tasks are finished, new executor is created on next execute()
+    // Delayed tasks which were not submitted yet are dropped, otherwise their timer would create pool again
+    public static synchronized void shutdown() {
+        if (delayedTasksTimer != null) {
+            delayedTasksTimer.cancel();
+            delayedTasksTimer = null;
+        }
+        if (executor != null) {
+            Log.d(LOG_TAG, "Shutting down, " + executor.getQueue().size() + " queued tasks will still be run");
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
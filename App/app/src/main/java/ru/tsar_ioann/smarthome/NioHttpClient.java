@@ -0,0 +1,674 @@
+package ru.tsar_ioann.smarthome;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Non-blocking alternative to Http and KeepAliveConnection: all connections are driven by one selector thread,
+// so outstanding requests do not hold threads. Speaks only HTTP/1.1 subset which device firmware uses: GET and POST,
+// Content-Length, chunked or read-to-close bodies, keep-alive with one idle connection per host.
+// Listeners are called from NetworkExecutor, not from the selector thread.
+public class NioHttpClient {
+    private static final String LOG_TAG = "NioHttpClient";
+    private static final String THREAD_NAME = "nio-http";
+
+    private static final long MAX_IDLE_MS = 10000;
+    private static final int MAX_HEAD_SIZE = 8192;
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private static Engine engine = null;
+
+    public static HttpFuture<Http.Response> asyncRequest(String url, byte[] data, Map<String, String> headers, int attempts, Http.Listener listener) {
+        return asyncRequest(url, data, headers, attempts, listener, Http.DEFAULT_CONNECT_TIMEOUT_MS, Http.DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public static HttpFuture<Http.Response> asyncRequest(String url, byte[] data, Map<String, String> headers, int attempts, Http.Listener listener, int connectTimeoutMs, int readTimeoutMs) {
+        HttpFuture<Http.Response> future = asyncRequest(url, data, headers, attempts, RetryPolicy.DEFAULT, null, connectTimeoutMs, readTimeoutMs);
+        HttpFuture.addListener(future, listener);
+        return future;
+    }
+
+    // Timeouts are taken from device's RTT estimation before each attempt
+    public static HttpFuture<Http.Response> asyncRequest(RttEstimator rttEstimator, String url, byte[] data, Map<String, String> headers, int attempts) {
+        return asyncRequest(url, data, headers, attempts, RetryPolicy.DEVICE, rttEstimator, 0, 0);
+    }
+
+    private static HttpFuture<Http.Response> asyncRequest(String url, byte[] data, Map<String, String> headers, int attempts, RetryPolicy retryPolicy, RttEstimator rttEstimator, int connectTimeoutMs, int readTimeoutMs) {
+        final HttpFuture<Http.Response> future = new HttpFuture<>();
+        new Retrier(url, data, headers, attempts, retryPolicy, rttEstimator, connectTimeoutMs, readTimeoutMs, future).runAttempt();
+        return future;
+    }
+
+    public static synchronized int getOpenConnectionsCount() {
+        return engine != null ? engine.selector.keys().size() : 0;
+    }
+
+    // Used when requests to host go over another transport, host may serve only one connection at a time
+    public static synchronized void closeIdleConnection(URL url) {
+        if (engine != null) {
+            final String authority = url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : Http.DEFAULT_PORT);
+            final Engine currentEngine = engine;
+            currentEngine.post(() -> currentEngine.closeIdle(authority));
+        }
+    }
+
+    // Requests which are in progress fail, new engine is created on next request
+    public static synchronized void shutdown() {
+        if (engine != null) {
+            engine.post(engine::stop);
+            engine = null;
+        }
+    }
+
+    private static synchronized Engine getEngine() throws IOException {
+        if (engine == null) {
+            engine = new Engine();
+        }
+        return engine;
+    }
+
+    // Same logic as Http.requestWithRetries, but delays between attempts do not hold a thread
+    private static class Retrier {
+        private final String url;
+        private final byte[] data;
+        private final Map<String, String> headers;
+        private final int attempts;
+        private final RetryPolicy retryPolicy;
+        private final RttEstimator rttEstimator;
+        private final int connectTimeoutMs;
+        private final int readTimeoutMs;
+        private final HttpFuture<Http.Response> future;
+        private int spentAttempts = 0;
+
+        public Retrier(String url, byte[] data, Map<String, String> headers, int attempts, RetryPolicy retryPolicy, RttEstimator rttEstimator, int connectTimeoutMs, int readTimeoutMs, HttpFuture<Http.Response> future) {
+            this.url = url;
+            this.data = data;
+            this.headers = headers;
+            this.attempts = attempts;
+            this.retryPolicy = retryPolicy;
+            this.rttEstimator = rttEstimator;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.future = future;
+        }
+
+        public void runAttempt() {
+            if (future.isDone()) {
+                return;
+            }
+            ++spentAttempts;
+            final long startET = SystemClock.elapsedRealtime();
+            final HttpFuture<Http.Response> attempt;
+            try {
+                attempt = getEngine().exchange(
+                        url,
+                        data,
+                        headers,
+                        rttEstimator != null ? rttEstimator.getConnectTimeoutMs() : connectTimeoutMs,
+                        rttEstimator != null ? rttEstimator.getReadTimeoutMs() : readTimeoutMs
+                );
+            } catch (IOException e) {
+                future.fail(e);
+                return;
+            }
+            future.onCancel(attempt::cancel);
+            attempt.addCallback(new HttpFuture.Callback<Http.Response>() {
+                @Override
+                public void onSuccess(Http.Response response) {
+                    retryPolicy.onSuccess();
+                    if (rttEstimator != null) {
+                        rttEstimator.addSample(SystemClock.elapsedRealtime() - startET);
+                    }
+                    if (!RetryPolicy.shouldRetry(response.getHttpCode()) || spentAttempts >= attempts) {
+                        future.complete(response);
+                    } else {
+                        runAttempt();
+                    }
+                }
+
+                @Override
+                public void onError(IOException exception) {
+                    if (rttEstimator != null && exception instanceof SocketTimeoutException) {
+                        rttEstimator.onTimeout();
+                    }
+                    if (!retryPolicy.shouldRetry(exception, spentAttempts, attempts)) {
+                        Log.d(LOG_TAG, "Failed with exception '" + exception.getMessage() + "', not retrying after " + spentAttempts + " of " + attempts + " attempts");
+                        future.fail(exception);
+                        return;
+                    }
+                    final long delayMs = retryPolicy.getDelayMs(spentAttempts);
+                    Log.d(LOG_TAG, "Skipping exception '" + exception.getMessage() + "' because only " + spentAttempts + " of " + attempts + " attempts spent, retrying in " + delayMs + " ms");
+                    try {
+                        getEngine().schedule(delayMs, () -> NetworkExecutor.execute(Retrier.this::runAttempt));
+                    } catch (IOException e) {
+                        future.fail(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        private final long dueET;
+        private final Runnable action;
+
+        public Timer(long dueET, Runnable action) {
+            this.dueET = dueET;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(dueET, other.dueET);
+        }
+    }
+
+    private static class IdleConnection {
+        private final SelectionKey key;
+        private final long idleSinceET;
+
+        public IdleConnection(SelectionKey key, long idleSinceET) {
+            this.key = key;
+            this.idleSinceET = idleSinceET;
+        }
+    }
+
+    // Everything below is accessed only from the selector thread, other threads communicate through post()
+    private static class Engine implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private final Map<String, IdleConnection> idleConnections = new HashMap<>();  // host:port -> connection
+        private final List<Exchange> exchanges = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean running = true;
+
+        public Engine() throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, THREAD_NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void post(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void schedule(long delayMs, Runnable action) {
+            final long dueET = SystemClock.elapsedRealtime() + delayMs;
+            post(() -> timers.add(new Timer(dueET, action)));
+        }
+
+        public HttpFuture<Http.Response> exchange(String url, byte[] data, Map<String, String> headers, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+            final Exchange exchange = new Exchange(new URL(url), data, headers, connectTimeoutMs, readTimeoutMs);
+            exchange.future.onCancel(() -> post(() -> exchange.fail(new KeepAliveConnection.AbortedException())));
+            post(() -> exchange.start());
+            return exchange.future;
+        }
+
+        public void stop() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(getSelectTimeoutMs());
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Select failed: " + e.getMessage());
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Exchange exchange = (Exchange) key.attachment();
+                    if (exchange == null) {
+                        closeIdle(key);  // device closed idle connection, or sent something unexpected
+                    } else if (key.isValid()) {
+                        exchange.handle(key);
+                    }
+                }
+
+                checkTimeouts();
+            }
+
+            for (Exchange exchange : new ArrayList<>(exchanges)) {
+                exchange.fail(new IOException("Client was shut down"));
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private long getSelectTimeoutMs() {
+            final long nowET = SystemClock.elapsedRealtime();
+            long nearestET = Long.MAX_VALUE;
+            for (Exchange exchange : exchanges) {
+                nearestET = Math.min(nearestET, exchange.deadlineET);
+            }
+            if (!timers.isEmpty()) {
+                nearestET = Math.min(nearestET, timers.peek().dueET);
+            }
+            if (!idleConnections.isEmpty()) {
+                nearestET = Math.min(nearestET, nowET + MAX_IDLE_MS);
+            }
+            if (nearestET == Long.MAX_VALUE) {
+                return 0;  // no limit
+            }
+            return Math.max(1, nearestET - nowET);
+        }
+
+        private void checkTimeouts() {
+            final long nowET = SystemClock.elapsedRealtime();
+            for (Exchange exchange : new ArrayList<>(exchanges)) {
+                if (nowET >= exchange.deadlineET) {
+                    exchange.fail(new SocketTimeoutException(exchange.connected ? "Read timed out" : "Connect timed out"));
+                }
+            }
+            while (!timers.isEmpty() && timers.peek().dueET <= nowET) {
+                timers.poll().action.run();
+            }
+            Iterator<IdleConnection> it = idleConnections.values().iterator();
+            while (it.hasNext()) {
+                IdleConnection idle = it.next();
+                if (nowET - idle.idleSinceET >= MAX_IDLE_MS) {
+                    it.remove();
+                    closeQuietly(idle.key);
+                }
+            }
+        }
+
+        private void closeIdle(SelectionKey key) {
+            Iterator<IdleConnection> it = idleConnections.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().key == key) {
+                    it.remove();
+                }
+            }
+            closeQuietly(key);
+        }
+
+        private void closeIdle(String authority) {
+            IdleConnection idle = idleConnections.remove(authority);
+            if (idle != null) {
+                Log.d(LOG_TAG, "Closing idle connection to " + authority);
+                closeQuietly(idle.key);
+            }
+        }
+
+        private static void closeQuietly(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // One request-response over a new or reused connection
+        private class Exchange {
+            private final URL req;
+            private final String authority;
+            private final String host;
+            private final int port;
+            private final byte[] data;
+            private final Map<String, String> headers;
+            private final int connectTimeoutMs;
+            private final int readTimeoutMs;
+            private final HttpFuture<Http.Response> future = new HttpFuture<>();
+            private final ResponseParser parser = new ResponseParser();
+
+            private SelectionKey key = null;
+            private ByteBuffer out = null;
+            private boolean reused = false;
+            private boolean connected = false;
+            private boolean finished = false;
+            private long deadlineET = Long.MAX_VALUE;
+
+            public Exchange(URL req, byte[] data, Map<String, String> headers, int connectTimeoutMs, int readTimeoutMs) {
+                this.req = req;
+                this.host = req.getHost();
+                this.port = req.getPort() != -1 ? req.getPort() : Http.DEFAULT_PORT;
+                this.authority = host + ":" + port;
+                this.data = data;
+                this.headers = headers;
+                this.connectTimeoutMs = connectTimeoutMs;
+                this.readTimeoutMs = readTimeoutMs;
+            }
+
+            public void start() {
+                if (future.isDone()) {
+                    return;
+                }
+                exchanges.add(this);
+                byte[] head = KeepAliveConnection.buildRequestHead(req, host, port, data != null ? data.length : -1, headers);
+                out = ByteBuffer.allocate(head.length + (data != null ? data.length : 0));
+                out.put(head);
+                if (data != null) {
+                    out.put(data);
+                }
+                out.flip();
+
+                IdleConnection idle = idleConnections.remove(authority);
+                if (idle != null && idle.key.isValid()) {
+                    Log.d(LOG_TAG, "Making request to '" + req + "' over idle connection");
+                    reused = true;
+                    connected = true;
+                    key = idle.key;
+                    key.attach(this);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    deadlineET = SystemClock.elapsedRealtime() + readTimeoutMs;
+                    return;
+                }
+                Log.d(LOG_TAG, "Making request to '" + req + "' over new connection");
+                connect();
+            }
+
+            private void connect() {
+                reused = false;
+                connected = false;
+                deadlineET = SystemClock.elapsedRealtime() + connectTimeoutMs;
+                try {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                    if (channel.connect(new InetSocketAddress(host, port))) {
+                        onConnected();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            private void onConnected() {
+                connected = true;
+                deadlineET = SystemClock.elapsedRealtime() + readTimeoutMs;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            public void handle(SelectionKey key) {
+                try {
+                    if (key.isConnectable()) {
+                        if (((SocketChannel) key.channel()).finishConnect()) {
+                            onConnected();
+                        }
+                    } else if (key.isWritable()) {
+                        write();
+                    } else if (key.isReadable()) {
+                        read();
+                    }
+                } catch (IOException e) {
+                    if (canReconnect()) {
+                        reconnect(e);
+                    } else {
+                        fail(e);
+                    }
+                }
+            }
+
+            private void write() throws IOException {
+                ((SocketChannel) key.channel()).write(out);
+                if (!out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                deadlineET = SystemClock.elapsedRealtime() + readTimeoutMs;
+            }
+
+            private void read() throws IOException {
+                readBuffer.clear();
+                final int n = ((SocketChannel) key.channel()).read(readBuffer);
+                if (n < 0) {
+                    if (canReconnect()) {
+                        reconnect(new EOFException("Connection closed by device"));
+                        return;
+                    }
+                    parser.onEof();
+                    finish(false);
+                    return;
+                }
+                deadlineET = SystemClock.elapsedRealtime() + readTimeoutMs;
+                if (parser.feed(readBuffer.array(), 0, n)) {
+                    finish(parser.isKeepAlive());
+                }
+            }
+
+            // Device may have run POST before closing the connection, so only GET requests are sent again
+            private boolean canReconnect() {
+                return reused && data == null && !parser.hasReceivedAnything();
+            }
+
+            // Device closed idle connection before it answered anything, so request is sent again once
+            private void reconnect(IOException cause) {
+                Log.d(LOG_TAG, "Connection to " + authority + " was closed by device (" + cause.getMessage() + "), reconnecting");
+                closeQuietly(key);
+                out.rewind();
+                connect();
+            }
+
+            private void finish(boolean keepAlive) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                exchanges.remove(this);
+                key.attach(null);
+                if (keepAlive && key.isValid() && !idleConnections.containsKey(authority)) {
+                    key.interestOps(SelectionKey.OP_READ);  // to notice when device closes it
+                    idleConnections.put(authority, new IdleConnection(key, SystemClock.elapsedRealtime()));
+                } else {
+                    closeQuietly(key);
+                }
+                final Http.Response response = parser.getResponse();
+                Log.d(LOG_TAG, "Response code: " + response.getHttpCode() + ", data size: " + response.getBody().size() + " bytes");
+                NetworkExecutor.execute(() -> future.complete(response));
+            }
+
+            public void fail(IOException exception) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                exchanges.remove(this);
+                if (key != null) {
+                    closeQuietly(key);
+                }
+                NetworkExecutor.execute(() -> future.fail(exception));
+            }
+        }
+    }
+
+    // Incremental parser, bytes are fed as they come from socket
+    private static class ResponseParser {
+        private enum Stage {
+            STATUS_LINE,
+            HEADERS,
+            BODY,
+            CHUNK_SIZE,
+            CHUNK_DATA,
+            CHUNK_DATA_END,
+            TRAILERS,
+            DONE
+        }
+
+        private Stage stage = Stage.STATUS_LINE;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        private int headSize = 0;
+        private boolean receivedAnything = false;
+
+        private String statusLine = null;
+        private int httpCode = 0;
+        private final Map<String, String> headers = new HashMap<>();
+        private ResponseBody body = null;
+        private int bodyRemaining = -1;  // -1 means until connection is closed
+        private int chunkRemaining = 0;
+
+        public boolean hasReceivedAnything() {
+            return receivedAnything;
+        }
+
+        // Returns true when the whole response is received
+        public boolean feed(byte[] bytes, int offset, int length) throws IOException {
+            receivedAnything |= length > 0;
+            final int end = offset + length;
+            int pos = offset;
+            while (pos < end && stage != Stage.DONE) {
+                switch (stage) {
+                    case BODY: {
+                        int n = bodyRemaining >= 0 ? Math.min(bodyRemaining, end - pos) : end - pos;
+                        body.append(bytes, pos, n);
+                        pos += n;
+                        if (bodyRemaining >= 0 && (bodyRemaining -= n) == 0) {
+                            stage = Stage.DONE;
+                        }
+                        break;
+                    }
+                    case CHUNK_DATA: {
+                        int n = Math.min(chunkRemaining, end - pos);
+                        body.append(bytes, pos, n);
+                        pos += n;
+                        if ((chunkRemaining -= n) == 0) {
+                            stage = Stage.CHUNK_DATA_END;
+                        }
+                        break;
+                    }
+                    default: {
+                        final byte b = bytes[pos++];
+                        if (b != '\n') {
+                            if (line.size() >= MAX_HEAD_SIZE) {
+                                throw new IOException("Too long line in response");
+                            }
+                            line.write(b);
+                            break;
+                        }
+                        onLine(takeLine());
+                        break;
+                    }
+                }
+            }
+            return stage == Stage.DONE;
+        }
+
+        public void onEof() throws IOException {
+            if (stage == Stage.BODY && bodyRemaining < 0) {
+                stage = Stage.DONE;
+                return;
+            }
+            if (stage != Stage.DONE) {
+                throw new EOFException("Connection closed before whole response was received");
+            }
+        }
+
+        public boolean isKeepAlive() {
+            final boolean delimited = bodyRemaining >= 0 || "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+            return delimited && !"close".equalsIgnoreCase(headers.get("connection")) && statusLine.startsWith("HTTP/1.1");
+        }
+
+        public Http.Response getResponse() {
+            return new Http.Response(httpCode, body);
+        }
+
+        private String takeLine() throws IOException {
+            byte[] bytes = line.toByteArray();
+            line.reset();
+            if (stage == Stage.STATUS_LINE || stage == Stage.HEADERS) {
+                headSize += bytes.length + 1;
+                if (headSize > MAX_HEAD_SIZE) {
+                    throw new IOException("Too big response head");
+                }
+            }
+            int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+
+        private void onLine(String text) throws IOException {
+            switch (stage) {
+                case STATUS_LINE:
+                    statusLine = text;
+                    httpCode = KeepAliveConnection.parseStatusCode(text);
+                    stage = Stage.HEADERS;
+                    break;
+                case HEADERS:
+                    if (!text.isEmpty()) {
+                        int colon = text.indexOf(':');
+                        if (colon > 0) {
+                            headers.put(text.substring(0, colon).trim().toLowerCase(Locale.ROOT), text.substring(colon + 1).trim());
+                        }
+                        break;
+                    }
+                    onHeadersEnd();
+                    break;
+                case CHUNK_SIZE: {
+                    int semicolon = text.indexOf(';');
+                    try {
+                        chunkRemaining = Integer.parseInt((semicolon >= 0 ? text.substring(0, semicolon) : text).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad chunk size: " + text);
+                    }
+                    stage = chunkRemaining > 0 ? Stage.CHUNK_DATA : Stage.TRAILERS;
+                    break;
+                }
+                case CHUNK_DATA_END:
+                    stage = Stage.CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if (text.isEmpty()) {
+                        stage = Stage.DONE;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onHeadersEnd() throws IOException {
+            final String contentLength = headers.get("content-length");
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = new ResponseBody();
+                stage = Stage.CHUNK_SIZE;
+            } else if (contentLength != null) {
+                try {
+                    bodyRemaining = Integer.parseInt(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad Content-Length: " + contentLength);
+                }
+                body = new ResponseBody(bodyRemaining);
+                stage = bodyRemaining > 0 ? Stage.BODY : Stage.DONE;
+            } else {
+                body = new ResponseBody();
+                stage = Stage.BODY;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package ru.tsar_ioann.smarthome;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Remembers when each device was last heard from (by scan reply or HTTP answer), at which address, and how
+// fast it answered. Entry stays fresh for its TTL, fresh devices are shown online at once and are not
+// rediscovered on every resume. Kept in storage, so it works after restart too. Wall clock is used
+// because elapsedRealtime() starts from zero after reboot.
+public class PresenceRegistry {
+    private static final String LOG_TAG = "PresenceRegistry";
+
+    // Scan reply only says that device is in network, HTTP answer says that it really works
+    public static final long SCAN_REPLY_TTL_MS = 3 * 60 * 1000;
+    public static final long HTTP_ANSWER_TTL_MS = 10 * 60 * 1000;
+
+    // Scan replies come often, last seen time is not written to storage for each of them
+    private static final long PERSIST_MIN_INTERVAL_MS = 30 * 1000;
+
+    private static final String KEY_SEEN_PREFIX = "seen-";
+    private static final String KEY_IP_PREFIX = "ip-";
+    private static final String KEY_PORT_PREFIX = "port-";
+    private static final String KEY_RTT_PREFIX = "rtt-";
+    private static final String KEY_TTL_PREFIX = "ttl-";
+    private static final String KEY_SUSPECT_PREFIX = "suspect-";
+
+    private static class Entry {
+        private long lastSeenMs;
+        private String ipAddress;
+        private int port;
+        private long rttMs = -1;  // unknown until device answers HTTP
+        private long ttlMs = SCAN_REPLY_TTL_MS;
+        private boolean suspect = false;  // last HTTP request failed, device is not trusted until next answer
+        private long persistedSeenMs = 0;
+        private boolean dirty = false;
+
+        private boolean isFresh(long nowMs) {
+            return !suspect && lastSeenMs <= nowMs && nowMs - lastSeenMs < ttlMs;
+        }
+    }
+
+    private final SharedPreferences storage;
+    private final Map<String, Entry> entries = new HashMap<>();  // MAC -> entry
+
+    public PresenceRegistry(SharedPreferences storage) {
+        this.storage = storage;
+        loadStorage();
+    }
+
+    private void loadStorage() {
+        for (String key : storage.getAll().keySet()) {
+            if (!key.startsWith(KEY_SEEN_PREFIX)) {
+                continue;
+            }
+            final String macAddress = key.substring(KEY_SEEN_PREFIX.length());
+            final Entry entry = new Entry();
+            entry.lastSeenMs = storage.getLong(KEY_SEEN_PREFIX + macAddress, 0);
+            entry.ipAddress = storage.getString(KEY_IP_PREFIX + macAddress, null);
+            entry.port = storage.getInt(KEY_PORT_PREFIX + macAddress, Http.DEFAULT_PORT);
+            entry.rttMs = storage.getLong(KEY_RTT_PREFIX + macAddress, -1);
+            entry.ttlMs = storage.getLong(KEY_TTL_PREFIX + macAddress, SCAN_REPLY_TTL_MS);
+            entry.suspect = storage.getBoolean(KEY_SUSPECT_PREFIX + macAddress, false);
+            entry.persistedSeenMs = entry.lastSeenMs;
+            entries.put(macAddress, entry);
+        }
+        Log.d(LOG_TAG, "Loaded presence of " + entries.size() + " devices");
+    }
+
+    public synchronized void onScanReply(String macAddress, String ipAddress, int port) {
+        final Entry entry = getOrCreate(macAddress);
+        update(entry, ipAddress, port);
+        persistIfNeeded(macAddress, entry);
+    }
+
+    public synchronized void onHttpAnswer(String macAddress, String ipAddress, int port, long rttMs) {
+        final Entry entry = getOrCreate(macAddress);
+        update(entry, ipAddress, port);
+        entry.rttMs = rttMs;
+        if (entry.suspect || entry.ttlMs != HTTP_ANSWER_TTL_MS) {
+            entry.suspect = false;
+            entry.ttlMs = HTTP_ANSWER_TTL_MS;
+            entry.dirty = true;
+        }
+        persistIfNeeded(macAddress, entry);
+    }
+
+    public synchronized void markSuspect(String macAddress) {
+        final Entry entry = entries.get(macAddress);
+        if (entry == null || entry.suspect) {
+            return;
+        }
+        entry.suspect = true;
+        entry.dirty = true;
+        persistIfNeeded(macAddress, entry);
+    }
+
+    public synchronized boolean isFresh(String macAddress) {
+        final Entry entry = entries.get(macAddress);
+        return entry != null && entry.isFresh(System.currentTimeMillis());
+    }
+
+    // -1 when device never answered HTTP
+    public synchronized long getRttMs(String macAddress) {
+        final Entry entry = entries.get(macAddress);
+        return entry != null ? entry.rttMs : -1;
+    }
+
+    // -1 when device was never heard from
+    public synchronized long getAgeMs(String macAddress) {
+        final Entry entry = entries.get(macAddress);
+        return entry != null ? System.currentTimeMillis() - entry.lastSeenMs : -1;
+    }
+
+    public synchronized void remove(String macAddress) {
+        if (entries.remove(macAddress) != null) {
+            storage.edit()
+                    .remove(KEY_SEEN_PREFIX + macAddress)
+                    .remove(KEY_IP_PREFIX + macAddress)
+                    .remove(KEY_PORT_PREFIX + macAddress)
+                    .remove(KEY_RTT_PREFIX + macAddress)
+                    .remove(KEY_TTL_PREFIX + macAddress)
+                    .remove(KEY_SUSPECT_PREFIX + macAddress)
+                    .apply();
+        }
+    }
+
+    // Writes last seen times which were not written because of PERSIST_MIN_INTERVAL_MS
+    public synchronized void flush() {
+        final SharedPreferences.Editor editor = storage.edit();
+        int written = 0;
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            final Entry entry = item.getValue();
+            if (entry.dirty || entry.persistedSeenMs != entry.lastSeenMs) {
+                save(editor, item.getKey(), entry);
+                ++written;
+            }
+        }
+        if (written > 0) {
+            editor.apply();
+        }
+    }
+
+    private Entry getOrCreate(String macAddress) {
+        Entry entry = entries.get(macAddress);
+        if (entry == null) {
+            entry = new Entry();
+            entry.dirty = true;
+            entries.put(macAddress, entry);
+        }
+        return entry;
+    }
+
+    private static void update(Entry entry, String ipAddress, int port) {
+        entry.lastSeenMs = System.currentTimeMillis();
+        if (!ipAddress.equals(entry.ipAddress) || port != entry.port) {
+            entry.ipAddress = ipAddress;
+            entry.port = port;
+            entry.dirty = true;
+        }
+    }
+
+    private void persistIfNeeded(String macAddress, Entry entry) {
+        if (entry.dirty || entry.lastSeenMs - entry.persistedSeenMs >= PERSIST_MIN_INTERVAL_MS) {
+            final SharedPreferences.Editor editor = storage.edit();
+            save(editor, macAddress, entry);
+            editor.apply();
+        }
+    }
+
+    private static void save(SharedPreferences.Editor editor, String macAddress, Entry entry) {
+        editor.putLong(KEY_SEEN_PREFIX + macAddress, entry.lastSeenMs);
+        editor.putString(KEY_IP_PREFIX + macAddress, entry.ipAddress);
+        editor.putInt(KEY_PORT_PREFIX + macAddress, entry.port);
+        editor.putLong(KEY_RTT_PREFIX + macAddress, entry.rttMs);
+        editor.putLong(KEY_TTL_PREFIX + macAddress, entry.ttlMs);
+        editor.putBoolean(KEY_SUSPECT_PREFIX + macAddress, entry.suspect);
+        entry.persistedSeenMs = entry.lastSeenMs;
+        entry.dirty = false;
+    }
+}
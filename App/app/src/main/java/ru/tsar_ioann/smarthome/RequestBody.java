@@ -0,0 +1,28 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Body of POST request which is written straight to socket, so big bodies (firmware) are not held in memory.
+// writeTo may be called more than once if request is resent over new connection.
+public interface RequestBody {
+    long getContentLength();
+    void writeTo(OutputStream out) throws IOException;
+
+    static RequestBody of(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+    }
+}
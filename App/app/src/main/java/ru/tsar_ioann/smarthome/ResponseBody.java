@@ -0,0 +1,126 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ResponseBody {
+    private static final int FIRST_CHUNK_SIZE = 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_PREALLOCATED_SIZE = 4 * 1024 * 1024;  // do not trust huge Content-Length blindly
+
+    private final List<byte[]> fullChunks = new ArrayList<>();
+    private byte[] current;
+    private int position = 0;
+    private int size = 0;
+
+    public ResponseBody() {
+        this(-1);
+    }
+
+    // expectedLength is Content-Length of response, or -1 if it is unknown
+    public ResponseBody(int expectedLength) {
+        if (expectedLength >= 0 && expectedLength <= MAX_PREALLOCATED_SIZE) {
+            current = new byte[expectedLength];
+        } else {
+            current = new byte[FIRST_CHUNK_SIZE];
+        }
+    }
+
+    public void readFrom(InputStream is) throws IOException {
+        while (true) {
+            if (position == current.length) {
+                if (!isEofAfterFullChunk(is)) {
+                    continue;
+                }
+                return;
+            }
+            int n = is.read(current, position, current.length - position);
+            if (n == -1) {
+                return;
+            }
+            position += n;
+            size += n;
+        }
+    }
+
+    // Reads one byte to find out whether stream is finished, so no chunk is allocated for exact Content-Length
+    private boolean isEofAfterFullChunk(InputStream is) throws IOException {
+        int b = is.read();
+        if (b == -1) {
+            return true;
+        }
+        nextChunk();
+        current[position++] = (byte) b;
+        ++size;
+        return false;
+    }
+
+    public void append(byte[] bytes, int offset, int len) {
+        while (len > 0) {
+            if (position == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(bytes, offset, current, position, n);
+            position += n;
+            size += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    private void nextChunk() {
+        if (current.length > 0) {
+            fullChunks.add(current);
+        }
+        current = new byte[Math.min(Math.max(size, FIRST_CHUNK_SIZE), MAX_CHUNK_SIZE)];
+        position = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Returns internal array without copying when body was received in one piece (e.g. Content-Length was known)
+    public byte[] getData() {
+        if (fullChunks.isEmpty() && position == current.length) {
+            return current;
+        }
+        byte[] data = new byte[size];
+        int offset = 0;
+        for (byte[] chunk : fullChunks) {
+            System.arraycopy(chunk, 0, data, offset, chunk.length);
+            offset += chunk.length;
+        }
+        System.arraycopy(current, 0, data, offset, position);
+        fullChunks.clear();
+        current = data;
+        position = data.length;
+        return data;
+    }
+
+    public ByteBuffer asByteBuffer() {
+        if (fullChunks.isEmpty()) {
+            return ByteBuffer.wrap(current, 0, position).slice().asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+    }
+
+    public InputStream asInputStream() {
+        if (fullChunks.isEmpty()) {
+            return new ByteArrayInputStream(current, 0, position);
+        }
+        List<InputStream> streams = new ArrayList<>(fullChunks.size() + 1);
+        for (byte[] chunk : fullChunks) {
+            streams.add(new ByteArrayInputStream(chunk));
+        }
+        streams.add(new ByteArrayInputStream(current, 0, position));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+}
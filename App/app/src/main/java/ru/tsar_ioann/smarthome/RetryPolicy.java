@@ -0,0 +1,85 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+    // Pause helps when connect exception happens immediately, setup screens rely on many fast attempts
+    public static final RetryPolicy DEFAULT = new RetryPolicy(50, 50, 1.0, null);
+    // Configured devices: pause grows if device is really busy, and retries are limited when many devices are offline
+    public static final RetryPolicy DEVICE = new RetryPolicy(50, 1000, 2.0, new RetryBudget(10, 0.1));
+    // Downloads over mobile data: every retry resumes from already received bytes, so giving network time to recover is cheap
+    public static final RetryPolicy DOWNLOAD = new RetryPolicy(500, 8000, 2.0, null);
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final double multiplier;
+    private final RetryBudget budget;
+
+    // Retries are paid from tokens which are earned by successful requests, so when everything fails there are no retry storms
+    public static class RetryBudget {
+        private final double maxTokens;
+        private final double tokensPerSuccess;
+        private double tokens;
+
+        public RetryBudget(double maxTokens, double tokensPerSuccess) {
+            this.maxTokens = maxTokens;
+            this.tokensPerSuccess = tokensPerSuccess;
+            this.tokens = maxTokens;
+        }
+
+        public synchronized boolean tryWithdraw() {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        public synchronized void deposit() {
+            tokens = Math.min(maxTokens, tokens + tokensPerSuccess);
+        }
+    }
+
+    public RetryPolicy(long baseDelayMs, long maxDelayMs, double multiplier, RetryBudget budget) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.multiplier = multiplier;
+        this.budget = budget;
+    }
+
+    public boolean shouldRetry(IOException exception, int spentAttempts, int maxAttempts) {
+        if (spentAttempts >= maxAttempts || !isTransient(exception)) {
+            return false;
+        }
+        return budget == null || budget.tryWithdraw();
+    }
+
+    protected boolean isTransient(IOException exception) {
+        return !(exception instanceof MalformedURLException)
+                && !(exception instanceof UnknownHostException)
+                && !(exception instanceof CircuitBreaker.OpenException)
+                && !(exception instanceof KeepAliveConnection.AbortedException);
+    }
+
+    // Only server errors are worth asking again: 304 is an answer to conditional request, and 4xx will be the same
+    public static boolean shouldRetry(int httpCode) {
+        return httpCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    // Half of delay is fixed and half is random, so retries from many devices do not come in waves
+    public long getDelayMs(int spentAttempts) {
+        final double delay = Math.min(maxDelayMs, baseDelayMs * Math.pow(multiplier, spentAttempts - 1));
+        final long half = (long) (delay / 2);
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    public void onSuccess() {
+        if (budget != null) {
+            budget.deposit();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.tsar_ioann.smarthome;
+
+import java.util.Arrays;
+
+// Smoothed round trip time and its variance, computed like TCP does it (RFC 6298)
+public class RttEstimator {
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int VARIANCE_MULTIPLIER = 4;
+    private static final int MAX_BACKOFF_SHIFT = 3;
+
+    private static final int MIN_CONNECT_TIMEOUT_MS = 300;
+    private static final int MAX_CONNECT_TIMEOUT_MS = Http.DEFAULT_CONNECT_TIMEOUT_MS;
+    private static final int MIN_READ_TIMEOUT_MS = 500;
+    private static final int MAX_READ_TIMEOUT_MS = 6000;
+    private static final int RECENT_SAMPLES = 64;
+
+    private boolean hasSamples = false;
+    private double smoothedRttMs = 0;
+    private double rttVariationMs = 0;
+    private int backoffShift = 0;
+    private final long[] recentSamples = new long[RECENT_SAMPLES];  // ring buffer for percentiles
+    private int samplesCount = 0;
+
+    public synchronized void addSample(long rttMs) {
+        if (!hasSamples) {
+            smoothedRttMs = rttMs;
+            rttVariationMs = rttMs / 2.0;
+            hasSamples = true;
+        } else {
+            rttVariationMs = (1 - BETA) * rttVariationMs + BETA * Math.abs(smoothedRttMs - rttMs);
+            smoothedRttMs = (1 - ALPHA) * smoothedRttMs + ALPHA * rttMs;
+        }
+        backoffShift = 0;
+        recentSamples[samplesCount++ % RECENT_SAMPLES] = rttMs;
+    }
+
+    // Forgets measured RTT, e.g. after device reboot
+    public synchronized void reset() {
+        hasSamples = false;
+        smoothedRttMs = 0;
+        rttVariationMs = 0;
+        backoffShift = 0;
+        samplesCount = 0;
+    }
+
+    // Each timeout in a row doubles timeouts, so slow device is not cut off forever
+    public synchronized void onTimeout() {
+        if (backoffShift < MAX_BACKOFF_SHIFT) {
+            ++backoffShift;
+        }
+    }
+
+    public synchronized boolean hasSamples() {
+        return hasSamples;
+    }
+
+    public synchronized int getSamplesCount() {
+        return samplesCount;
+    }
+
+    // Percentile of last samples, -1 if there are no samples yet
+    public synchronized long getPercentileMs(double percentile) {
+        final int n = Math.min(samplesCount, RECENT_SAMPLES);
+        if (n == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(recentSamples, n);
+        Arrays.sort(sorted);
+        return sorted[Math.min(n - 1, (int) Math.ceil(percentile * n) - 1)];
+    }
+
+    public synchronized long getSmoothedRttMs() {
+        return Math.round(smoothedRttMs);
+    }
+
+    public synchronized int getConnectTimeoutMs() {
+        if (!hasSamples) {
+            return Http.DEFAULT_CONNECT_TIMEOUT_MS;
+        }
+        return clamp(getRetransmissionTimeoutMs(), MIN_CONNECT_TIMEOUT_MS, MAX_CONNECT_TIMEOUT_MS);
+    }
+
+    public synchronized int getReadTimeoutMs() {
+        if (!hasSamples) {
+            return Http.DEFAULT_READ_TIMEOUT_MS;
+        }
+        return clamp(getRetransmissionTimeoutMs(), MIN_READ_TIMEOUT_MS, MAX_READ_TIMEOUT_MS);
+    }
+
+    private long getRetransmissionTimeoutMs() {
+        return Math.round(smoothedRttMs + VARIANCE_MULTIPLIER * rttVariationMs) << backoffShift;
+    }
+
+    private static int clamp(long value, int minValue, int maxValue) {
+        return (int) Math.max(minValue, Math.min(maxValue, value));
+    }
+}
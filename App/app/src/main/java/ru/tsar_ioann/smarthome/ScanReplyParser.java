@@ -0,0 +1,207 @@
+package ru.tsar_ioann.smarthome;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Parses device answers to scan ("MAC=XX:XX:XX:XX:XX:XX\nNAME=..." in UTF-8) right from received bytes.
+// MAC address is read to long, which is the key of known replies: for device which was seen already with
+// the same name and IP address, previous Reply is returned and nothing is allocated.
+// Not thread-safe, is meant to be used from UdpListener thread only.
+public class ScanReplyParser {
+    private static final byte[] MAC_PREFIX = "MAC=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAME_PREFIX = "\nNAME=".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAC_ADDRESS_BYTES = 6;
+    private static final int MAC_ADDRESS_LENGTH = MAC_ADDRESS_BYTES * 3 - 1;
+
+    private static final int INITIAL_CAPACITY = 32;
+    private static final int MAX_KNOWN_REPLIES = 1024;  // garbage from network can not make table grow forever
+
+    private static final byte[] HEX_VALUES = buildHexValues();
+
+    public static class Reply {
+        private final long macAddressValue;
+        private final String macAddress;
+        private byte[] nameBytes = null;
+        private String name = null;
+        private InetAddress address = null;
+        private String ipAddress = null;
+
+        private Reply(long macAddressValue) {
+            this.macAddressValue = macAddressValue;
+            this.macAddress = macAddressToString(macAddressValue);
+        }
+
+        public long getMacAddressValue() {
+            return macAddressValue;
+        }
+
+        // Upper case with colons, as devices are stored in DevicesList
+        public String getMacAddress() {
+            return macAddress;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+    }
+
+    // Open addressing by MAC address, so lookups do not box keys
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Reply[] replies = new Reply[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Returns null for malformed message. Message position is not changed.
+    public Reply parse(ByteBuffer message, InetAddress sender) {
+        final int start = message.position();
+        final int end = message.limit();
+        final int macStart = start + MAC_PREFIX.length;
+        final int nameStart = macStart + MAC_ADDRESS_LENGTH + NAME_PREFIX.length;
+        if (nameStart > end || !startsWith(message, start, MAC_PREFIX)
+                || !startsWith(message, macStart + MAC_ADDRESS_LENGTH, NAME_PREFIX)) {
+            return null;
+        }
+        final long macAddressValue = parseMacAddress(message, macStart);
+        if (macAddressValue < 0) {
+            return null;
+        }
+        int nameEnd = end;
+        while (nameEnd > nameStart && message.get(nameEnd - 1) == '\n') {
+            --nameEnd;
+        }
+        for (int i = nameStart; i < nameEnd; ++i) {
+            if (message.get(i) == '\n') {
+                return null;
+            }
+        }
+
+        Reply reply = find(macAddressValue);
+        if (reply == null) {
+            reply = new Reply(macAddressValue);
+            put(reply);
+        }
+        if (reply.nameBytes == null || !equalBytes(message, nameStart, nameEnd, reply.nameBytes)) {
+            reply.nameBytes = new byte[nameEnd - nameStart];
+            for (int i = 0; i < reply.nameBytes.length; ++i) {
+                reply.nameBytes[i] = message.get(nameStart + i);
+            }
+            reply.name = new String(reply.nameBytes, StandardCharsets.UTF_8);
+        }
+        if (!sender.equals(reply.address)) {
+            reply.address = sender;
+            reply.ipAddress = sender.getHostAddress();
+        }
+        return reply;
+    }
+
+    // Accepts hex digits of any case and both ':' and '-' as separators, returns -1 for bad address
+    public static long parseMacAddress(ByteBuffer message, int offset) {
+        long result = 0;
+        for (int i = 0; i < MAC_ADDRESS_BYTES; ++i) {
+            final int pos = offset + i * 3;
+            if (i > 0) {
+                final byte separator = message.get(pos - 1);
+                if (separator != ':' && separator != '-') {
+                    return -1;
+                }
+            }
+            final int high = hexValue(message.get(pos));
+            final int low = hexValue(message.get(pos + 1));
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            result = (result << 8) | (high << 4) | low;
+        }
+        return result;
+    }
+
+    public static String macAddressToString(long macAddressValue) {
+        final byte[] bytes = new byte[MAC_ADDRESS_BYTES];
+        for (int i = MAC_ADDRESS_BYTES - 1; i >= 0; --i) {
+            bytes[i] = (byte) macAddressValue;
+            macAddressValue >>>= 8;
+        }
+        return Utils.macAddressBytesToString(bytes);
+    }
+
+    private Reply find(long macAddressValue) {
+        final int mask = keys.length - 1;
+        for (int i = slot(macAddressValue, mask); replies[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == macAddressValue) {
+                return replies[i];
+            }
+        }
+        return null;
+    }
+
+    private void put(Reply reply) {
+        if (size >= MAX_KNOWN_REPLIES) {
+            Arrays.fill(replies, null);
+            size = 0;
+        } else if ((size + 1) * 2 > keys.length) {
+            final long[] oldKeys = keys;
+            final Reply[] oldReplies = replies;
+            keys = new long[oldKeys.length * 2];
+            replies = new Reply[oldReplies.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldReplies[i] != null) {
+                    put(oldReplies[i]);
+                }
+            }
+        }
+        final int mask = keys.length - 1;
+        int i = slot(reply.macAddressValue, mask);
+        while (replies[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = reply.macAddressValue;
+        replies[i] = reply;
+        ++size;
+    }
+
+    private static int slot(long macAddressValue, int mask) {
+        final long h = macAddressValue * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private static boolean startsWith(ByteBuffer message, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; ++i) {
+            if (message.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalBytes(ByteBuffer message, int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; ++i) {
+            if (message.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(byte b) {
+        return b >= 0 ? HEX_VALUES[b] : -1;
+    }
+
+    private static byte[] buildHexValues() {
+        final byte[] values = new byte[128];
+        Arrays.fill(values, (byte) -1);
+        for (int v = 0; v < 16; ++v) {
+            values["0123456789ABCDEF".charAt(v)] = (byte) v;
+            values["0123456789abcdef".charAt(v)] = (byte) v;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,73 @@
+package ru.tsar_ioann.smarthome;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Collects values changed while previous request to device is still in progress, only the latest value of each
+// dimmer or switcher is sent, all of them in a single request
+public class SetValuesCoalescer {
+    private static final int ATTEMPTS = 3;
+
+    private final DeviceInfo device;
+    private final Map<String, Integer> pendingValues = new LinkedHashMap<>();  // argument name -> value
+    private final List<Http.Listener> pendingListeners = new ArrayList<>();
+    private boolean commandPosted = false;
+
+    public SetValuesCoalescer(DeviceInfo device) {
+        this.device = device;
+    }
+
+    public void asyncSetDimmerValue(int n, int value, Http.Listener listener) {
+        put(DeviceInfo.DIMMER_PREFIX + n, value, listener);
+    }
+
+    public void asyncSetSwitcherValue(int n, boolean value, Http.Listener listener) {
+        put(DeviceInfo.SWITCHER_PREFIX + n, value ? 1 : 0, listener);
+    }
+
+    private synchronized void put(String argName, int value, Http.Listener listener) {
+        pendingValues.put(argName, value);
+        if (listener != null) {
+            pendingListeners.add(listener);
+        }
+        if (!commandPosted) {
+            commandPosted = true;
+            device.getMailbox().post(DeviceMailbox.Priority.INTERACTIVE, this::send);
+        }
+    }
+
+    private void send() {
+        final StringBuilder url = new StringBuilder(device.getHttpAddress()).append(DeviceInfo.Handlers.SET_VALUES);
+        final List<Http.Listener> listeners;
+        synchronized (this) {
+            char separator = '?';
+            for (Map.Entry<String, Integer> entry : pendingValues.entrySet()) {
+                url.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+                separator = '&';
+            }
+            listeners = new ArrayList<>(pendingListeners);
+            pendingValues.clear();
+            pendingListeners.clear();
+            commandPosted = false;
+        }
+
+        try {
+            Http.Response response = device.getMailbox().request(
+                    url.toString(),
+                    null,
+                    Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, device.getHttpPassword()),
+                    ATTEMPTS
+            );
+            for (Http.Listener listener : listeners) {
+                listener.onResponse(response);
+            }
+        } catch (IOException e) {
+            for (Http.Listener listener : listeners) {
+                listener.onError(e);
+            }
+        }
+    }
+}
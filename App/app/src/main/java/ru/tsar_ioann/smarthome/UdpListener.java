@@ -0,0 +1,137 @@
+package ru.tsar_ioann.smarthome;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+// Receives UDP answers of devices on non-blocking channel: thread sleeps in select() without any timeouts
+// and stop() closes socket at once, so nothing is left running while app is in background.
+// Packets are read to reused buffer, there are no allocations per packet except sender address.
+public class UdpListener {
+    private static final String LOG_TAG = "UdpListener";
+    private static final String THREAD_NAME = "udp-listener";
+    private static final int RECEIVE_BUFFER_SIZE = 256;
+
+    public interface Listener {
+        // Called from listener thread, message is valid only until return
+        void onReceive(ByteBuffer message, InetSocketAddress sender);
+        void onError(IOException exception);
+    }
+
+    private final int port;
+    private final Listener listener;
+
+    private DatagramChannel channel = null;
+    private Selector selector = null;
+
+    public UdpListener(int port, Listener listener) {
+        this.port = port;
+        this.listener = listener;
+    }
+
+    public synchronized boolean isRunning() {
+        return channel != null;
+    }
+
+    public synchronized void start() {
+        if (channel != null) {
+            return;
+        }
+        final DatagramChannel newChannel;
+        final Selector newSelector;
+        try {
+            newChannel = DatagramChannel.open();
+        } catch (IOException e) {
+            listener.onError(e);
+            return;
+        }
+        try {
+            newChannel.configureBlocking(false);
+            newChannel.socket().setReuseAddress(true);  // previous channel may be still closing after quick restart
+            newChannel.socket().bind(new InetSocketAddress(port));  // DatagramChannel.bind needs API 24
+            newSelector = Selector.open();
+            newChannel.register(newSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeQuietly(newChannel);
+            listener.onError(e);
+            return;
+        }
+        channel = newChannel;
+        selector = newSelector;
+        new Thread(() -> loop(newChannel, newSelector), THREAD_NAME).start();
+        Log.d(LOG_TAG, "Listening on port " + port);
+    }
+
+    // Port is released before return, thread finishes right after
+    public synchronized void stop() {
+        if (channel == null) {
+            return;
+        }
+        closeQuietly(channel);
+        selector.wakeup();
+        channel = null;
+        selector = null;
+        Log.d(LOG_TAG, "Stopped listening on port " + port);
+    }
+
+    private void loop(DatagramChannel channel, Selector selector) {
+        // Own buffer for each run: thread of previous run may still be finishing after quick restart
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        try {
+            while (channel.isOpen()) {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    receiveAll(channel, buffer);
+                }
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                listener.onError(e);
+            }
+        } finally {
+            closeQuietly(channel);
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void receiveAll(DatagramChannel channel, ByteBuffer buffer) {
+        while (channel.isOpen()) {
+            buffer.clear();
+            final SocketAddress sender;
+            try {
+                sender = channel.receive(buffer);
+            } catch (IOException e) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                listener.onError(e);  // channel is still open, next packets will come with next select()
+                return;
+            }
+            if (sender == null) {
+                return;
+            }
+            buffer.flip();
+            listener.onReceive(buffer, (InetSocketAddress) sender);
+        }
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -32,13 +32,28 @@ public class Utils {
         }
     }
 
-    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    // Two chars for every byte value, so each byte is encoded by two array reads
+    private static final char[] HEX_UPPER = buildHexTable("0123456789ABCDEF");
+    private static final char[] HEX_LOWER = buildHexTable("0123456789abcdef");
+
+    private static char[] buildHexTable(String digits) {
+        char[] table = new char[256 * 2];
+        for (int v = 0; v < 256; ++v) {
+            table[v * 2] = digits.charAt(v >>> 4);
+            table[v * 2 + 1] = digits.charAt(v & 0x0F);
+        }
+        return table;
+    }
+
     public static String bytesToHex(byte[] bytes) {
+        if (bytes.length == 0) {
+            return "";
+        }
         char[] hexChars = new char[bytes.length * 3 - 1];
         for (int j = 0; j < bytes.length; ++j) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 3] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 3 + 1] = HEX_ARRAY[v & 0x0F];
+            int v = (bytes[j] & 0xFF) * 2;
+            hexChars[j * 3] = HEX_UPPER[v];
+            hexChars[j * 3 + 1] = HEX_UPPER[v + 1];
             if (j < bytes.length - 1) {
                 hexChars[j * 3 + 2] = ' ';
             }
@@ -47,20 +62,28 @@ public class Utils {
     }
 
     public static String sha256(byte[] data) {
+        return hashToHex(newSha256Digest().digest(data));
+    }
+
+    public static MessageDigest newSha256Digest() {
         try {
-            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("No support for sha256!");
         }
     }
 
+    // Lower-case, as hashes are published in firmware info
+    public static String hashToHex(byte[] hash) {
+        char[] hexChars = new char[hash.length * 2];
+        for (int j = 0; j < hash.length; ++j) {
+            int v = (hash[j] & 0xFF) * 2;
+            hexChars[j * 2] = HEX_LOWER[v];
+            hexChars[j * 2 + 1] = HEX_LOWER[v + 1];
+        }
+        return new String(hexChars);
+    }
+
     public static Map<String, String> createMapWithOneElement(String key, String value) {
         Map<String, String> result = new HashMap<>();
         result.put(key, value);
@@ -73,7 +96,8 @@ public class Utils {
             if (sb.length() > 0) {
                 sb.append(':');
             }
-            sb.append(String.format("%02X", b));
+            int v = (b & 0xFF) * 2;
+            sb.append(HEX_UPPER[v]).append(HEX_UPPER[v + 1]);
         }
         return sb.toString();
     }
@@ -12,6 +12,7 @@ import android.os.Build;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.RadioButton;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -78,6 +79,17 @@ public class AppSettings extends BaseScreen {
             });
         });
 
+        final SharedPreferences connectionSettings = activity.getSharedPreferences(DeviceMailbox.SETTINGS_NAME, Context.MODE_PRIVATE);
+        final CheckBox cbNonBlockingConnections = activity.findViewById(R.id.cbNonBlockingConnections);
+        cbNonBlockingConnections.setChecked(DeviceMailbox.getTransport() == DeviceMailbox.Transport.NIO);
+        cbNonBlockingConnections.jumpDrawablesToCurrentState();
+        cbNonBlockingConnections.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            SharedPreferences.Editor editor = connectionSettings.edit();
+            editor.putBoolean(DeviceMailbox.SETTINGS_KEY_NON_BLOCKING, isChecked);
+            editor.apply();
+            DeviceMailbox.setTransport(isChecked ? DeviceMailbox.Transport.NIO : DeviceMailbox.Transport.BLOCKING);
+        });
+
         if (Build.MANUFACTURER.equalsIgnoreCase("xiaomi")) {
             Button btnGoToAutostartSettings = activity.findViewById(R.id.btnGoToAutostartSettings);
             btnGoToAutostartSettings.setOnClickListener(v -> {
@@ -6,11 +6,16 @@ import android.text.method.PasswordTransformationMethod;
 import android.widget.CheckBox;
 import android.widget.EditText;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import ru.tsar_ioann.smarthome.*;
 
 public abstract class BaseScreen {
     private final CommonData commonData;
     private final Activity activity;
+    private final List<HttpFuture<?>> startedWork = new ArrayList<>();
 
     public BaseScreen(CommonData commonData) {
         this.commonData = commonData;
@@ -18,8 +23,35 @@ public abstract class BaseScreen {
     }
 
     public abstract int getViewFlipperChildId();
-    public void handleUdpDeviceInfo(String macAddress, String name, String ipAddress, int port) {}
-    public void onScreenLeave() {}
+
+    // Screens which override this should call super, so network work started by screen is cancelled
+    public void onScreenLeave() {
+        cancelStartedWork();
+    }
+
+    // Work is cancelled when user leaves the screen, so its callbacks do not touch views of other screen
+    protected final <T> HttpFuture<T> track(HttpFuture<T> future) {
+        synchronized (startedWork) {
+            for (Iterator<HttpFuture<?>> it = startedWork.iterator(); it.hasNext(); ) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+            startedWork.add(future);
+        }
+        return future;
+    }
+
+    protected final void cancelStartedWork() {
+        final List<HttpFuture<?>> toCancel;
+        synchronized (startedWork) {
+            toCancel = new ArrayList<>(startedWork);
+            startedWork.clear();
+        }
+        for (HttpFuture<?> future : toCancel) {
+            future.cancel();
+        }
+    }
 
     protected final CommonData getCommonData() {
         return commonData;
@@ -49,7 +49,7 @@ public class ConfiguredDeviceParams extends BaseScreen {
             edtCfgDevPassword.setEnabled(false);
             btnAddDevice.setEnabled(false);
 
-            Http.asyncRequest(
+            track(Http.asyncRequest(
                     DeviceInfo.getHttpAddress(ipAddress, port) + DeviceInfo.Handlers.GET_INFO,
                     null,
                     Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, httpPassword),
@@ -117,7 +117,7 @@ public class ConfiguredDeviceParams extends BaseScreen {
                             showErrorAndEnableUI(tr(R.string.device_connect_failed));
                         }
                     }
-            );
+            ));
         });
 
         edtCfgDevIpAddress.setFilters(new InputFilter[]{new Utils.IpAddressInputFilter()});
@@ -16,20 +16,15 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import ru.tsar_ioann.smarthome.*;
 
 public class ConfiguredDevices extends BaseScreen {
     private static final String LOG_TAG = "ConfiguredDevices";
 
-    private static final int MULTICASTS_COUNT = 60;
-    private static final int DELAY_BETWEEN_MULTICASTS = 1000;
-
     private final Activity activity;
     private final ArrayAdapter<DeviceInfo> lstConfiguredDevicesAdapter;
-    private final Timer timerMulticastRepeater;
+    private final DiscoveryService.Subscription discovery;
 
     private final List<DeviceInfo> configuredDevicesList;
     private final Set<String> configuredDevices;
@@ -47,9 +42,6 @@ public class ConfiguredDevices extends BaseScreen {
         pbConfiguredDevicesSearch.setVisibility(View.VISIBLE);
 
         configuredDevices = new HashSet<>();
-        for (DeviceInfo addedDevice : commonData.getDevices().getList()) {
-            configuredDevices.add(addedDevice.getMacAddress());
-        }
 
         configuredDevicesList = new ArrayList<>();
         lstConfiguredDevicesAdapter = new ArrayAdapter<DeviceInfo>(
@@ -73,31 +65,32 @@ public class ConfiguredDevices extends BaseScreen {
         };
         lstConfiguredDevices.setAdapter(lstConfiguredDevicesAdapter);
 
-        timerMulticastRepeater = new Timer();
-        timerMulticastRepeater.schedule(new TimerTask() {
-            private int sentMulticasts = 0;
-
+        // Devices which are already added to app are filtered out by discovery service
+        discovery = commonData.getDiscoveryService().subscribe(DiscoveryService.Filter.UNKNOWN_DEVICES, new DiscoveryService.Listener() {
             @Override
-            public void run() {
-                if (sentMulticasts >= MULTICASTS_COUNT) {
-                    timerMulticastRepeater.cancel();
-                    activity.runOnUiThread(() -> {
-                        pbConfiguredDevicesSearch.setVisibility(View.GONE);
-                        txtSearchingConfigured.setText(tr(configuredDevicesList.size() > 0
-                                        ? R.string.search_configured_finished_choose_device
-                                        : R.string.search_configured_finished_nothing_found));
-                    });
-                    return;
+            public void onDeviceFound(String macAddress, String name, String ipAddress) {
+                final String deviceInfoStrForLog = macAddress + " - " + name + " - " + ipAddress;
+                if (!configuredDevices.contains(macAddress)) {
+                    Log.d(LOG_TAG, "Got info about new configured device: " + deviceInfoStrForLog);
+                    configuredDevices.add(macAddress);
+                    configuredDevicesList.add(new DeviceInfo(macAddress, name, ipAddress));
+                    activity.runOnUiThread(lstConfiguredDevicesAdapter::notifyDataSetChanged);
+                } else {
+                    Log.d(LOG_TAG, "Got info about already found device: " + deviceInfoStrForLog);
                 }
+            }
 
-                Udp.asyncMulticastNoThrow(
-                        UdpSettings.UDP_MULTICAST_IP,
-                        UdpSettings.UDP_MULTICAST_PORT,
-                        UdpSettings.UDP_SCAN_REQUEST
-                );
-                ++sentMulticasts;
+            @Override
+            public void onScanFinished(Set<String> missingMacAddresses) {
+                activity.runOnUiThread(() -> {
+                    pbConfiguredDevicesSearch.setVisibility(View.GONE);
+                    txtSearchingConfigured.setText(tr(configuredDevicesList.size() > 0
+                                    ? R.string.search_configured_finished_choose_device
+                                    : R.string.search_configured_finished_nothing_found));
+                });
             }
-        }, 0, DELAY_BETWEEN_MULTICASTS);
+        });
+        discovery.rescan();
 
         lstConfiguredDevices.setOnItemClickListener((adapterView, view, position, id) -> {
             DeviceInfo chosenDevice = (DeviceInfo)adapterView.getItemAtPosition(position);
@@ -109,22 +102,10 @@ public class ConfiguredDevices extends BaseScreen {
         btnInputIP.setOnClickListener(v -> commonData.getScreenLauncher().launchScreen(ScreenId.CONFIGURED_DEVICE_PARAMS));
     }
 
-    @Override
-    public void handleUdpDeviceInfo(String macAddress, String name, String ipAddress, int port) {
-        final String deviceInfoStrForLog = macAddress + " - " + name + " - " + ipAddress;
-        if (!configuredDevices.contains(macAddress)) {
-            Log.d(LOG_TAG, "Got info about new configured device: " + deviceInfoStrForLog);
-            configuredDevices.add(macAddress);
-            configuredDevicesList.add(new DeviceInfo(macAddress, name, ipAddress));
-            activity.runOnUiThread(lstConfiguredDevicesAdapter::notifyDataSetChanged);
-        } else {
-            Log.d(LOG_TAG, "Got info about already found or added device: " + deviceInfoStrForLog);
-        }
-    }
-
     @Override
     public void onScreenLeave() {
-        timerMulticastRepeater.cancel();
+        super.onScreenLeave();
+        discovery.close();
     }
 
     @Override
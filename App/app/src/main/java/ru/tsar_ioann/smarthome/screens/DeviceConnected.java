@@ -24,7 +24,7 @@ public class DeviceConnected extends BaseScreen {
         DeviceInfo deviceInfo = commonData.getNewDeviceInfo();
         assert deviceInfo != null;
 
-        Http.asyncRequest(
+        track(Http.asyncRequest(
                 deviceInfo.getHttpAddress() + DeviceInfo.Handlers.GET_INFO,
                 null,
                 Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, DeviceInfo.DEFAULT_HTTP_PASSWORD),
@@ -75,7 +75,7 @@ public class DeviceConnected extends BaseScreen {
                         showErrorAndGoToMainScreen(tr(R.string.device_connect_failed));
                     }
                 }
-        );
+        ));
     }
 
     @Override
@@ -180,11 +180,11 @@ public class DeviceSettings extends BaseScreen {
             argsStr.append("&blob=").append(Utils.urlEncode(new String(device.generateAdditionalBlob(), StandardCharsets.UTF_8)));
 
             btnSaveDeviceSettings.setEnabled(false);
-            Http.asyncRequest(
+            device.getMailbox().asyncRequest(
+                    DeviceMailbox.Priority.INTERACTIVE,
                     device.getHttpAddress() + DeviceInfo.Handlers.SET_SETTINGS,
                     argsStr.toString().getBytes(StandardCharsets.UTF_8),
                     Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, device.getHttpPassword()),
-                    null,
                     3,
                     new Http.Listener() {
                         @Override
@@ -239,11 +239,11 @@ public class DeviceSettings extends BaseScreen {
             edtPassword.setEnabled(false);
             btnSaveConnectionSettings.setEnabled(false);
 
-            Http.asyncRequest(
+            track(device.getMailbox().asyncRequest(
+                    DeviceMailbox.Priority.INTERACTIVE,
                     DeviceInfo.getHttpAddress(ipAddress, port) + DeviceInfo.Handlers.GET_INFO,
                     null,
                     Utils.createMapWithOneElement(DeviceInfo.HEADER_PASSWORD, httpPassword),
-                    null,
                     5,
                     new Http.Listener() {
                         private void enableUI() {
@@ -289,7 +289,7 @@ public class DeviceSettings extends BaseScreen {
                             showErrorAndEnableUI(tr(R.string.device_connect_failed_2));
                         }
                     }
-            );
+            ));
         });
 
         setupShowPasswordCheckBox(activity.findViewById(R.id.cbShowPassword), edtPassword);
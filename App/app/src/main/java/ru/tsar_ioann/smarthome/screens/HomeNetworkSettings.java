@@ -43,6 +43,7 @@ public class HomeNetworkSettings extends BaseScreen {
             String networkSsid = edtNetworkSsid.getText().toString();
             String data = "ssid=" + Utils.urlEncode(networkSsid)
                     + "&passphrase=" + Utils.urlEncode(edtPassphrase.getText().toString());
+            // Not tracked: leaving the screen must not interrupt sending of network settings to device
             Http.asyncRequest(
                     DeviceInfo.ACCESS_POINT_ADDRESS + DeviceInfo.Handlers.SETUP_WIFI,
                     data.getBytes(StandardCharsets.UTF_8),
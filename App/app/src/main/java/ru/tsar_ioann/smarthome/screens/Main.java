@@ -5,21 +5,26 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.Toast;
 
 import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.Set;
+
 import ru.tsar_ioann.smarthome.*;
 
-public class Main extends BaseScreen implements DevicesList.Listener {
+public class Main extends BaseScreen implements DevicesList.Listener, DiscoveryService.Listener {
     private static final String LOG_TAG = "Main";
     private static final long ASYNC_REFRESH_MIN_INTERVAL_MS = 1000;
 
     private final Activity activity;
     private final Button btnAppSettings;
+    private final Button btnUpdateAllFirmware;
     private final DevicesList devices;
     private final DevicesAdapter devicesAdapter;
+    private final DiscoveryService.Subscription discovery;
 
     private long lastAsyncRefreshET = 0;
     private boolean setupMode = false;
@@ -36,6 +41,10 @@ public class Main extends BaseScreen implements DevicesList.Listener {
         btnAppSettings.setVisibility(View.GONE);
         btnAppSettings.setOnClickListener(v -> commonData.getScreenLauncher().launchScreen(ScreenId.APP_SETTINGS));
 
+        btnUpdateAllFirmware = activity.findViewById(R.id.btnUpdateAllFirmware);
+        btnUpdateAllFirmware.setVisibility(View.GONE);
+        btnUpdateAllFirmware.setOnClickListener(v -> confirmRollout());
+
         RecyclerView rcvDevices = activity.findViewById(R.id.rcvDevices);
         rcvDevices.setLayoutManager(new LinearLayoutManager(activity, LinearLayoutManager.VERTICAL, false));
         rcvDevices.addItemDecoration(new DividerItemDecoration(rcvDevices.getContext(), LinearLayoutManager.VERTICAL));
@@ -51,10 +60,12 @@ public class Main extends BaseScreen implements DevicesList.Listener {
 
         menuVisibilityChanger.setMenuVisibility(true, !devices.getList().isEmpty(), true);
 
-        asyncRefresh(false);
+        discovery = commonData.getDiscoveryService().subscribe(DiscoveryService.Filter.KNOWN_DEVICES, this);
+        asyncRefresh(false, true);
     }
 
-    public void asyncRefresh(boolean checkTimePassed) {
+    // With onlyStale devices which were heard from recently keep their state, full refresh is done on user request
+    public void asyncRefresh(boolean checkTimePassed, boolean onlyStale) {
         synchronized (this) {
             long nowET = SystemClock.elapsedRealtime();
             if (checkTimePassed) {
@@ -66,14 +77,14 @@ public class Main extends BaseScreen implements DevicesList.Listener {
             lastAsyncRefreshET = nowET;
         }
 
-        devices.rediscoverAll();
+        if (onlyStale) {
+            devices.rediscoverStale();
+        } else {
+            devices.rediscoverAll();
+        }
         devicesAdapter.notifyAllUpdated();
 
-        Udp.asyncMulticastNoThrow(
-                UdpSettings.UDP_MULTICAST_IP,
-                UdpSettings.UDP_MULTICAST_PORT,
-                UdpSettings.UDP_SCAN_REQUEST
-        );
+        discovery.rescan();
 
         getCommonData().getFirmwareUpdater().asyncCheckForFirmwareUpdates();
     }
@@ -81,17 +92,99 @@ public class Main extends BaseScreen implements DevicesList.Listener {
     public void toggleSetupMode() {
         setupMode = !setupMode;
         btnAppSettings.setVisibility(setupMode ? View.VISIBLE : View.GONE);
+        btnUpdateAllFirmware.setVisibility(setupMode ? View.VISIBLE : View.GONE);
         devicesAdapter.setSettingsButtonsVisible(setupMode);
     }
 
+    private void confirmRollout() {
+        final FirmwareUpdater firmwareUpdater = getCommonData().getFirmwareUpdater();
+        if (firmwareUpdater.isRolloutInProgress()) {
+            Toast.makeText(activity, tr(R.string.firmware_rollout_in_progress), Toast.LENGTH_LONG).show();
+            return;
+        }
+        final FirmwareRollout newRollout = new FirmwareRollout(
+                firmwareUpdater,
+                devices.getList(),
+                FirmwareRollout.DEFAULT_PARALLELISM,
+                FirmwareRollout.DEFAULT_MAX_FAILURE_RATE,
+                new RolloutListener()
+        );
+        final DeviceInfo canary = newRollout.getCanaryDevice();
+        if (canary == null) {
+            Utils.showOkDialog(activity, tr(R.string.update_all_firmware), tr(R.string.rollout_no_devices));
+            return;
+        }
+        Utils.showYesNoDialog(
+                activity,
+                tr(R.string.question),
+                tr(
+                        R.string.confirm_rollout,
+                        newRollout.getTargetVersion(),
+                        newRollout.getDevicesCount(),
+                        canary.getName(),
+                        newRollout.getParallelism(),
+                        firmwareUpdater.getLastFirmwareDescription(tr(R.string.lang_key))
+                ),
+                (dialog, which) -> {
+                    if (!firmwareUpdater.startRollout(newRollout)) {
+                        Toast.makeText(activity, tr(R.string.firmware_rollout_in_progress), Toast.LENGTH_LONG).show();
+                    }
+                },
+                (dialog, which) -> {}
+        );
+    }
+
+    private class RolloutListener implements FirmwareRollout.Listener {
+        @Override
+        public void onDeviceStarted(DeviceInfo device, boolean canary) {
+            activity.runOnUiThread(() -> Toast.makeText(
+                    activity,
+                    tr(R.string.update_started, device.getName()),
+                    Toast.LENGTH_SHORT
+            ).show());
+        }
+
+        @Override
+        public void onDeviceSucceeded(DeviceInfo device) {
+            activity.runOnUiThread(() -> Toast.makeText(
+                    activity,
+                    tr(R.string.rollout_device_updated, device.getName(), device.getFirmwareVersion()),
+                    Toast.LENGTH_SHORT
+            ).show());
+        }
+
+        @Override
+        public void onDeviceFailed(DeviceInfo device, int messageResId) {
+            activity.runOnUiThread(() -> Toast.makeText(
+                    activity,
+                    tr(R.string.rollout_device_failed, device.getName(), tr(messageResId)),
+                    Toast.LENGTH_LONG
+            ).show());
+        }
+
+        @Override
+        public void onFinished(int succeeded, int failed, int notStarted, boolean halted) {
+            activity.runOnUiThread(() -> {
+                Utils.showOkDialog(
+                        activity,
+                        tr(halted ? R.string.warning : R.string.update_all_firmware),
+                        halted
+                                ? tr(R.string.rollout_halted, succeeded, failed, notStarted)
+                                : tr(R.string.rollout_finished, succeeded, failed)
+                );
+            });
+        }
+    }
+
     @Override
-    public void handleUdpDeviceInfo(String macAddress, String name, String ipAddress, int port) {
+    public void onDeviceFound(String macAddress, String name, String ipAddress) {
         DeviceInfo device = devices.getDeviceByMacAddress(macAddress);
         if (device == null) {
             Log.d(LOG_TAG, "Received MAC address which we do not know: " + macAddress);
             return;
         }
-        if (device.isDiscovered()) {
+        // Device shown online from presence registry may answer from new IP, then it is not really discovered
+        if (device.isDiscovered() && device.getIpAddress().equals(ipAddress)) {
             Log.d(LOG_TAG, "Got info about device which is already discovered (MAC: " + macAddress + ")");
             return;
         }
@@ -105,8 +198,29 @@ public class Main extends BaseScreen implements DevicesList.Listener {
         }
 
         Log.d(LOG_TAG, "Device with MAC address " + macAddress + " has changed IP to " + ipAddress + ", trying to discover");
+        device.setDiscovered(false);
         device.setParams(device.getName(), ipAddress, Http.DEFAULT_PORT, false, device.getHttpPassword());
-        device.asyncDiscover();
+        devices.discover(device);
+    }
+
+    // Scan stops as soon as all added devices answered, devices which did not answer are probed by HTTP
+    // at their last known address, in case they are there but multicast does not reach them
+    @Override
+    public void onScanFinished(Set<String> missingMacAddresses) {
+        for (String macAddress : missingMacAddresses) {
+            final DeviceInfo device = devices.getDeviceByMacAddress(macAddress);
+            if (device == null || device.isDiscovered() || device.isOffline()) {
+                continue;
+            }
+            Log.d(LOG_TAG, "Device " + macAddress + " did not answer to scan, probing it at " + device.getIpAddress());
+            devices.discover(device);
+        }
+    }
+
+    @Override
+    public void onScreenLeave() {
+        super.onScreenLeave();
+        discovery.close();
     }
 
     @Override
@@ -0,0 +1,63 @@
+package ru.tsar_ioann.smarthome;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+// Minimal timing harness for benchmarks in unit tests, JMH does not fit Android module. Benchmarks are skipped
+// in usual test runs, to run them:
+//   ./gradlew :app:testDebugUnitTest -Pbenchmarks --tests '*Benchmark'
+// Each case is warmed up, then best of several rounds is printed with bytes allocated per operation.
+final class Benchmarks {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    interface Operation {
+        // Returned value is consumed, so JIT can not throw the work away
+        Object run() throws Exception;
+    }
+
+    private static Object sink;
+
+    private Benchmarks() {
+    }
+
+    static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks are run only with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+    }
+
+    static void measure(String name, int operationsPerRound, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            runRound(operationsPerRound, operation);
+        }
+        long bestNs = Long.MAX_VALUE;
+        long bestAllocatedBytes = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; ++i) {
+            final long allocatedBefore = getAllocatedBytes();
+            final long startNs = System.nanoTime();
+            runRound(operationsPerRound, operation);
+            bestNs = Math.min(bestNs, System.nanoTime() - startNs);
+            bestAllocatedBytes = Math.min(bestAllocatedBytes, getAllocatedBytes() - allocatedBefore);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-40s %12.1f ns/op %12s B/op",
+                name,
+                (double) bestNs / operationsPerRound,
+                bestAllocatedBytes >= 0 ? String.valueOf(bestAllocatedBytes / operationsPerRound) : "?"));
+    }
+
+    private static void runRound(int operations, Operation operation) throws Exception {
+        for (int i = 0; i < operations; ++i) {
+            sink = operation.run();
+        }
+    }
+
+    // -1 when JVM does not count allocations per thread
+    private static long getAllocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
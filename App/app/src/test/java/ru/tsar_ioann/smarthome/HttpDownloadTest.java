@@ -0,0 +1,215 @@
+package ru.tsar_ioann.smarthome;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+// Resumable download against local HTTP server which breaks connections and answers Range requests as told
+public class HttpDownloadTest {
+    private static final int TIMEOUT_MS = 2000;
+
+    private interface Handler {
+        // range is null when request has no Range header
+        void handle(int requestIndex, String range, OutputStream out) throws IOException;
+    }
+
+    private static class TestServer {
+        private final ServerSocket serverSocket;
+        private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        private final Thread thread;
+
+        public TestServer(Handler handler) throws IOException {
+            serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            thread = new Thread(() -> {
+                try {
+                    for (int i = 0; ; ++i) {
+                        try (Socket socket = serverSocket.accept()) {
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                            String range = null;
+                            String line;
+                            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                                if (line.toLowerCase(Locale.ROOT).startsWith("range:")) {
+                                    range = line.substring("range:".length()).trim();
+                                }
+                            }
+                            ranges.add(range);
+                            handler.handle(i, range, socket.getOutputStream());
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // server socket is closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/firmware.bin";
+        }
+
+        public List<String> getRanges() {
+            return new ArrayList<>(ranges);
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content;
+    private File target;
+    private File part;
+    private TestServer server = null;
+
+    @Before
+    public void setUp() {
+        content = new byte[100000];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (i * 31 + i / 256);
+        }
+        target = new File(folder.getRoot(), "firmware.bin");
+        part = new File(target.getPath() + ".part");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void downloadsWholeFile() throws Exception {
+        server = new TestServer((i, range, out) -> sendWhole(out, content.length));
+
+        Http.Download download = Http.asyncDownload(server.getUrl(), target, 1, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertDownloaded(download);
+        assertEquals(Collections.singletonList(null), server.getRanges());
+    }
+
+    @Test
+    public void resumesFromReceivedBytes() throws Exception {
+        final int cut = 40000;
+        server = new TestServer((i, range, out) -> {
+            if (i == 0) {
+                sendWhole(out, cut);  // connection breaks in the middle of body
+            } else {
+                sendPartial(out, parseRangeStart(range));
+            }
+        });
+
+        Http.Download download = Http.asyncDownload(server.getUrl(), target, 2, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertDownloaded(download);
+        assertEquals(Arrays.asList(null, "bytes=" + cut + "-"), server.getRanges());
+    }
+
+    @Test
+    public void resumesAfterRestartFromPartFile() throws Exception {
+        Files.write(part.toPath(), Arrays.copyOf(content, 12345));
+        server = new TestServer((i, range, out) -> sendPartial(out, parseRangeStart(range)));
+
+        Http.Download download = Http.asyncDownload(server.getUrl(), target, 1, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertDownloaded(download);
+        assertEquals(Collections.singletonList("bytes=12345-"), server.getRanges());
+    }
+
+    @Test
+    public void startsOverWhenServerIgnoresRange() throws Exception {
+        Files.write(part.toPath(), Arrays.copyOf(content, 12345));
+        server = new TestServer((i, range, out) -> sendWhole(out, content.length));
+
+        Http.Download download = Http.asyncDownload(server.getUrl(), target, 1, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertDownloaded(download);
+        assertEquals(Collections.singletonList("bytes=12345-"), server.getRanges());
+    }
+
+    @Test
+    public void dropsPartWhichServerCanNotResume() throws Exception {
+        Files.write(part.toPath(), new byte[content.length + 10]);  // longer than file on server
+        server = new TestServer((i, range, out) -> {
+            if (range != null) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + content.length
+                        + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            } else {
+                sendWhole(out, content.length);
+            }
+        });
+
+        Http.Download download = Http.asyncDownload(server.getUrl(), target, 2, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertDownloaded(download);
+        assertEquals(Arrays.asList("bytes=" + (content.length + 10) + "-", null), server.getRanges());
+    }
+
+    @Test
+    public void returnsOtherResponseCodes() throws Exception {
+        server = new TestServer((i, range, out) -> out.write(
+                "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+
+        Http.Download download = Http.asyncDownload(server.getUrl(), target, 2, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertEquals(404, download.getHttpCode());
+        assertNull(download.getFile());
+        assertFalse(target.exists());
+    }
+
+    // Sends headers for the whole content, but only first bytesToSend bytes of it
+    private void sendWhole(OutputStream out, int bytesToSend) throws IOException {
+        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + content.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content, 0, bytesToSend);
+        out.flush();
+    }
+
+    private void sendPartial(OutputStream out, int start) throws IOException {
+        out.write(("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + (content.length - 1) + "/" + content.length
+                + "\r\nContent-Length: " + (content.length - start) + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content, start, content.length - start);
+        out.flush();
+    }
+
+    // "bytes=1000-" -> 1000
+    private static int parseRangeStart(String range) {
+        return Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    private void assertDownloaded(Http.Download download) throws Exception {
+        assertEquals(200, download.getHttpCode());
+        assertEquals(target, download.getFile());
+        assertEquals(content.length, download.getSize());
+        assertEquals(Utils.hashToHex(MessageDigest.getInstance("SHA-256").digest(content)), download.getSha256());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertFalse(part.exists());
+    }
+}
@@ -0,0 +1,172 @@
+package ru.tsar_ioann.smarthome;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Cancelling and deadlines of composed futures, operations are plain futures completed by test
+public class HttpFutureTest {
+    private static final int DEADLINE_MS = 50;
+    private static final int TEST_TIMEOUT_MS = 5000;
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void deadlineFailsFutureAndStopsOperation() throws Exception {
+        final HttpFuture<String> operation = new HttpFuture<>();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        operation.onCancel(stopped::countDown);
+
+        assertDeadlineExceeded(operation.withDeadline(DEADLINE_MS));
+        assertTrue(stopped.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void deadlineIsPassedThroughThen() throws Exception {
+        final HttpFuture<String> first = new HttpFuture<>();
+        final AtomicBoolean secondStarted = new AtomicBoolean(false);
+        final HttpFuture<String> chain = first.withDeadline(DEADLINE_MS).then(result -> {
+            secondStarted.set(true);
+            return HttpFuture.succeeded(result + "!");
+        });
+
+        assertDeadlineExceeded(chain);
+        assertFalse(chain.isCancelled());
+        assertFalse(secondStarted.get());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void deadlineOfChainStopsRunningOperation() throws Exception {
+        final HttpFuture<String> first = HttpFuture.succeeded("first");
+        final HttpFuture<String> second = new HttpFuture<>();
+        final HttpFuture<String> chain = first.then(result -> second).withDeadline(DEADLINE_MS);
+
+        assertDeadlineExceeded(chain);
+        assertCancelled(second);
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void thenRunsNextOperationWithResult() throws Exception {
+        final HttpFuture<String> first = new HttpFuture<>();
+        final HttpFuture<Integer> chain = first.then(result -> HttpFuture.succeeded(result.length()));
+
+        first.complete("four");
+
+        assertEquals(Integer.valueOf(4), chain.get());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void deadlineOfOneOperationFailsAllAndCancelsOthers() throws Exception {
+        final HttpFuture<String> slow = new HttpFuture<>();
+        final HttpFuture<String> other = new HttpFuture<>();
+        final HttpFuture<List<String>> combined = HttpFuture.all(slow.withDeadline(DEADLINE_MS), other);
+
+        assertDeadlineExceeded(combined);
+        assertFalse(combined.isCancelled());
+        assertCancelled(other);
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void deadlineOfAllCancelsEveryOperation() throws Exception {
+        final HttpFuture<String> first = new HttpFuture<>();
+        final HttpFuture<String> second = new HttpFuture<>();
+        final HttpFuture<List<String>> combined = HttpFuture.all(first, second).withDeadline(DEADLINE_MS);
+
+        assertDeadlineExceeded(combined);
+        assertCancelled(first);
+        assertCancelled(second);
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void allKeepsOrderOfResults() throws Exception {
+        final HttpFuture<String> first = new HttpFuture<>();
+        final HttpFuture<String> second = new HttpFuture<>();
+        final HttpFuture<List<String>> combined = HttpFuture.all(first, second);
+
+        second.complete("b");
+        first.complete("a");
+
+        assertEquals(Arrays.asList("a", "b"), combined.get());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void anyTakesOtherResultWhenOneOperationExceedsDeadline() throws Exception {
+        final HttpFuture<String> slow = new HttpFuture<>();
+        final HttpFuture<String> other = new HttpFuture<>();
+        final HttpFuture<String> combined = HttpFuture.any(slow.withDeadline(DEADLINE_MS), other);
+
+        assertDeadlineExceeded(slow);
+        assertFalse(combined.isDone());
+        other.complete("other");
+
+        assertEquals("other", combined.get());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void anyCancelsOthersWhenFirstSucceeds() throws Exception {
+        final HttpFuture<String> first = new HttpFuture<>();
+        final HttpFuture<String> second = new HttpFuture<>();
+        final HttpFuture<String> combined = HttpFuture.any(first, second);
+
+        first.complete("first");
+
+        assertEquals("first", combined.get());
+        assertCancelled(second);
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void deadlineOfAnyCancelsEveryOperation() throws Exception {
+        final HttpFuture<String> first = new HttpFuture<>();
+        final HttpFuture<String> second = new HttpFuture<>();
+        final HttpFuture<String> combined = HttpFuture.any(first, second).withDeadline(DEADLINE_MS);
+
+        assertDeadlineExceeded(combined);
+        assertCancelled(first);
+        assertCancelled(second);
+    }
+
+    @Test
+    public void cancelledFutureDoesNotCallCallbacks() {
+        final HttpFuture<String> future = new HttpFuture<>();
+        final AtomicBoolean called = new AtomicBoolean(false);
+        future.addCallback(new HttpFuture.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                called.set(true);
+            }
+
+            @Override
+            public void onError(IOException exception) {
+                called.set(true);
+            }
+        });
+
+        assertTrue(future.cancel());
+        assertFalse(future.complete("late"));
+        assertFalse(called.get());
+    }
+
+    // Other operations are cancelled after waiters of the failed one are woken up, so it is waited for
+    private static void assertCancelled(HttpFuture<?> future) throws InterruptedException {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        future.onCancel(cancelled::countDown);
+        assertTrue(cancelled.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(future.isCancelled());
+    }
+
+    private static void assertDeadlineExceeded(HttpFuture<?> future) throws IOException {
+        try {
+            future.get();
+            fail("Deadline must be exceeded");
+        } catch (HttpFuture.DeadlineExceededException expected) {
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package ru.tsar_ioann.smarthome;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Non-blocking transport against local HTTP server which keeps connections alive or drops them as told
+public class NioHttpClientTest {
+    private static final int TIMEOUT_MS = 2000;
+    private static final int TEST_TIMEOUT_MS = 10000;
+
+    private interface Handler {
+        // Returns false to close connection without answering, requestIndex counts requests on all connections
+        boolean handle(int requestIndex, String requestLine, String body, OutputStream out) throws IOException;
+    }
+
+    private static class TestServer {
+        private final ServerSocket serverSocket;
+        private final Handler handler;
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<>());  // "<connection> <request line>"
+        private int connectionsCount = 0;
+
+        public TestServer(Handler handler) throws IOException {
+            this.handler = handler;
+            serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        final int connectionIndex;
+                        synchronized (this) {
+                            connectionIndex = connectionsCount++;
+                        }
+                        Thread connectionThread = new Thread(() -> serve(connectionIndex, socket));
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    }
+                } catch (IOException ignored) {
+                    // server socket is closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void serve(int connectionIndex, Socket socket) {
+            try (Socket ignored = socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    int contentLength = 0;
+                    String line;
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                        if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    for (int n = 0; n < contentLength; ) {
+                        int read = in.read(body, n, contentLength - n);
+                        if (read < 0) {
+                            return;
+                        }
+                        n += read;
+                    }
+
+                    final int requestIndex;
+                    synchronized (requests) {
+                        requestIndex = requests.size();
+                        requests.add(connectionIndex + " " + requestLine);
+                    }
+                    if (!handler.handle(requestIndex, requestLine, new String(body, StandardCharsets.UTF_8), socket.getOutputStream())) {
+                        return;
+                    }
+                }
+            } catch (IOException ignored) {
+                // client closed connection
+            }
+        }
+
+        public String getUrl(String path) {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+        }
+
+        public List<String> getRequests() {
+            return new ArrayList<>(requests);
+        }
+
+        public synchronized int getConnectionsCount() {
+            return connectionsCount;
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private TestServer server = null;
+
+    @After
+    public void tearDown() throws IOException {
+        NioHttpClient.shutdown();
+        DeviceMailbox.setTransport(DeviceMailbox.Transport.BLOCKING);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void getsResponse() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> respond(out, 200, "hello", false));
+
+        Http.Response response = NioHttpClient.asyncRequest(server.getUrl("/get_info"), null, null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertEquals(200, response.getHttpCode());
+        assertEquals("hello", response.getDataAsStr());
+        assertEquals(Collections.singletonList("0 GET /get_info HTTP/1.1"), server.getRequests());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void sendsPostBody() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> respond(out, 200, body, false));
+
+        Http.Response response = NioHttpClient.asyncRequest(server.getUrl("/set_values"), "values=1".getBytes(StandardCharsets.UTF_8), null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertEquals("values=1", response.getDataAsStr());
+        assertEquals(Collections.singletonList("0 POST /set_values HTTP/1.1"), server.getRequests());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void reusesKeepAliveConnection() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> respond(out, 200, "ok", true));
+
+        NioHttpClient.asyncRequest(server.getUrl("/first"), null, null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+        NioHttpClient.asyncRequest(server.getUrl("/second"), null, null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertEquals(Arrays.asList("0 GET /first HTTP/1.1", "0 GET /second HTTP/1.1"), server.getRequests());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void resendsGetWhenIdleConnectionWasClosed() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> i != 1 && respond(out, 200, "ok", true));
+
+        NioHttpClient.asyncRequest(server.getUrl("/first"), null, null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+        Http.Response response = NioHttpClient.asyncRequest(server.getUrl("/second"), null, null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertEquals(200, response.getHttpCode());
+        assertEquals(Arrays.asList("0 GET /first HTTP/1.1", "0 GET /second HTTP/1.1", "1 GET /second HTTP/1.1"), server.getRequests());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void doesNotResendPostWhenIdleConnectionWasClosed() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> i != 1 && respond(out, 200, "ok", true));
+
+        NioHttpClient.asyncRequest(server.getUrl("/first"), null, null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+        try {
+            NioHttpClient.asyncRequest(server.getUrl("/set_values"), "values=1".getBytes(StandardCharsets.UTF_8), null, 1, null, TIMEOUT_MS, TIMEOUT_MS).get();
+            fail("POST must fail when connection is closed by device");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(Arrays.asList("0 GET /first HTTP/1.1", "0 POST /set_values HTTP/1.1"), server.getRequests());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void retriesServerErrors() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> respond(out, i == 0 ? 503 : 200, "ok", false));
+
+        Http.Response response = NioHttpClient.asyncRequest(server.getUrl("/get_info"), null, null, 2, null, TIMEOUT_MS, TIMEOUT_MS).get();
+
+        assertEquals(200, response.getHttpCode());
+        assertEquals(2, server.getRequests().size());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void mailboxUsesNonBlockingTransportWhenEnabled() throws Exception {
+        server = new TestServer((i, requestLine, body, out) -> respond(out, 200, "ok", true));
+        DeviceMailbox.setTransport(DeviceMailbox.Transport.NIO);
+        final DeviceMailbox mailbox = DeviceMailbox.get("00:11:22:33:44:55");
+        final long blockingRequestsBefore = KeepAliveConnection.getRequestsCount();
+
+        Http.Response response = mailbox.asyncRequest(DeviceMailbox.Priority.INTERACTIVE, server.getUrl("/get_info"), null, null, 1, null).get();
+        mailbox.asyncRequest(DeviceMailbox.Priority.INTERACTIVE, server.getUrl("/set_values"), "values=1".getBytes(StandardCharsets.UTF_8), null, 1, null).get();
+
+        assertEquals(200, response.getHttpCode());
+        assertEquals(blockingRequestsBefore, KeepAliveConnection.getRequestsCount());
+        assertEquals(1, server.getConnectionsCount());
+        DeviceMailbox.remove("00:11:22:33:44:55");
+    }
+
+    private static boolean respond(OutputStream out, int httpCode, String body, boolean keepAlive) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        out.write(("HTTP/1.1 " + httpCode + " Status\r\nContent-Length: " + bytes.length
+                + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.flush();
+        return keepAlive;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.tsar_ioann.smarthome;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reading of response body: ResponseBody with known and unknown length against ArrayList<Byte>, which Http.Response
+// used before
+public class ResponseBodyBenchmark {
+    private static final int SMALL_SIZE = 200;         // GET_INFO answer
+    private static final int LARGE_SIZE = 400 * 1024;  // firmware image
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void small() throws Exception {
+        run(SMALL_SIZE, 100000);
+    }
+
+    @Test
+    public void large() throws Exception {
+        run(LARGE_SIZE, 50);
+    }
+
+    private static void run(int size, int operations) throws Exception {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) i;
+        }
+        Benchmarks.measure(size + " B, ArrayList<Byte>", operations, () -> readToBoxedList(new ByteArrayInputStream(data)));
+        Benchmarks.measure(size + " B, ResponseBody exact length", operations, () -> {
+            final ResponseBody body = new ResponseBody(size);
+            body.readFrom(new ByteArrayInputStream(data));
+            return body.getData();
+        });
+        Benchmarks.measure(size + " B, ResponseBody chunked", operations, () -> {
+            final ResponseBody body = new ResponseBody();
+            body.readFrom(new ByteArrayInputStream(data));
+            return body.getData();
+        });
+    }
+
+    // How Http.Response collected body before ResponseBody
+    private static byte[] readToBoxedList(InputStream is) throws IOException {
+        final List<Byte> buffer = new ArrayList<>();
+        final byte[] bytes = new byte[1024];
+        int len;
+        while ((len = is.read(bytes)) != -1) {
+            for (int i = 0; i < len; ++i) {
+                buffer.add(bytes[i]);
+            }
+        }
+        final byte[] result = new byte[buffer.size()];
+        for (int i = 0; i < buffer.size(); ++i) {
+            result[i] = buffer.get(i);
+        }
+        return result;
+    }
+}
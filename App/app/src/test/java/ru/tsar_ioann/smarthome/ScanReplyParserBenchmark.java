@@ -0,0 +1,58 @@
+package ru.tsar_ioann.smarthome;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Parsing of scan replies from 50 devices which answer in turn: ScanReplyParser against String based parsing,
+// which was done in MainActivity before
+public class ScanReplyParserBenchmark {
+    private static final int DEVICES = 50;
+
+    private final ByteBuffer[] replies = new ByteBuffer[DEVICES];
+    private final InetAddress[] senders = new InetAddress[DEVICES];
+
+    @Before
+    public void setUp() throws Exception {
+        Benchmarks.assumeEnabled();
+        for (int i = 0; i < DEVICES; ++i) {
+            final String reply = String.format(Locale.ROOT, "MAC=5C:CF:7F:%02X:%02X:%02X\nNAME=Лампа %d", i, i * 7 & 255, i * 13 & 255, i);
+            final byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+            replies[i] = ByteBuffer.allocateDirect(bytes.length);  // UdpListener receives to direct buffer
+            replies[i].put(bytes).flip();
+            senders[i] = InetAddress.getByAddress(new byte[]{(byte) 192, (byte) 168, 1, (byte) (10 + i)});
+        }
+    }
+
+    @Test
+    public void parse() throws Exception {
+        final int[] next = {0};
+        Benchmarks.measure("String split and regex", 1000000, () -> {
+            final int i = next[0]++ % DEVICES;
+            return parseAsString(replies[i].duplicate(), senders[i]);
+        });
+        final ScanReplyParser parser = new ScanReplyParser();
+        Benchmarks.measure("ScanReplyParser", 1000000, () -> {
+            final int i = next[0]++ % DEVICES;
+            return parser.parse(replies[i], senders[i]);
+        });
+    }
+
+    // How MainActivity parsed replies before ScanReplyParser
+    private static String[] parseAsString(ByteBuffer data, InetAddress sender) {
+        final String message = StandardCharsets.UTF_8.decode(data).toString();
+        final String[] lines = message.split("\n");
+        if (lines.length != 2 || !lines[0].startsWith("MAC=") || !lines[1].startsWith("NAME=")) {
+            return null;
+        }
+        final String macAddress = lines[0].substring("MAC=".length());
+        if (!Utils.isValidMacAddress(macAddress)) {
+            return null;
+        }
+        return new String[]{macAddress, lines[1].substring("NAME=".length()), sender.getHostAddress()};
+    }
+}
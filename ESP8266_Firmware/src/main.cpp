@@ -2,6 +2,7 @@
 #include <ESP8266WiFiGratuitous.h>
 #include <ESP8266WebServer.h>
 #include <ESP8266HTTPUpdateServer.h>
+#include <core_esp8266_version.h>
 #include <WiFiUdp.h>
 #include <lwip/igmp.h>
 
@@ -12,7 +13,10 @@
 
 #define HTTP_SERVER_PORT 80
 
-#define FIRMWARE_VERSION 6  // used as uint16_t, increase when making new firmware version
+#define FIRMWARE_VERSION 7  // used as uint16_t, increase when making new firmware version
+
+// Bits of capabilities in binary info (appeared from 5+)
+#define CAPABILITY_GZIP_UPDATE 0x01  // gzip-compressed firmware can be uploaded to updater
 
 #define UPDATER_USERNAME "admin"
 
@@ -399,9 +403,21 @@ private:
 };
 
 // Fill binInfoStorage
+uint8_t getCapabilities() {
+  uint8_t capabilities = 0;
+  // Bootloader (eboot) unpacks gzip images since core 2.7.0. Eboot is the first sector of firmware image, and
+  // both serial flashing and OTA update (eboot copies the whole new image to the start of flash) write it
+  // together with firmware, so running firmware has eboot of the same core it was built with.
+  if (esp8266::coreVersionNumeric() >= 20700000) {
+    capabilities |= CAPABILITY_GZIP_UPDATE;
+  }
+  return capabilities;
+}
+
 void generateInfoBinary(uint8_t version) {
   const bool v3 = version >= 3;  // request is for v3 or more
   const bool v4 = version >= 4;  // request is for v4 or more
+  const bool v5 = version >= 5;  // request is for v5 or more
 
   const String name = homeCfg.getName();
   const String additionalBlob = homeCfg.getAdditionalBlob();
@@ -409,6 +425,7 @@ void generateInfoBinary(uint8_t version) {
   //                                                      Sizes of:
   const size_t sz = (v3 ? 2 : 0)                            // response format version (appeared from 3+)
                   + (v4 ? 2 : 0)                            // firmware version (appeared from 4+)
+                  + (v5 ? 1 : 0)                            // capabilities (appeared from 5+)
                   + WL_MAC_ADDR_LENGTH                      // MAC
                   + 2 + name.length()                       // name length and name
                   + 1                                       // input pin number
@@ -418,7 +435,11 @@ void generateInfoBinary(uint8_t version) {
   binInfoStorage.resize(sz);
 
   UnalignedBinarySerializer serializer(binInfoStorage.data());
-  if (v4) {
+  if (v5) {
+    serializer.writeUInt16(0x0005);
+    serializer.writeUInt16(FIRMWARE_VERSION);
+    serializer.writeUInt8(getCapabilities());
+  } else if (v4) {
     serializer.writeUInt16(0x0004);
     serializer.writeUInt16(FIRMWARE_VERSION);
   } else if (v3) {
@@ -0,0 +1,121 @@
+#!/usr/bin/env python3
+
+# Make binary patch between two firmware images, which app applies to its cached previous image
+# (see FirmwarePatch.java for format description), or compare download sizes with --benchmark:
+#
+#   ./make_firmware_patch.py v5.bin v6.bin v5_to_v6.patch
+#   ./make_firmware_patch.py --benchmark ../smarthome.tsar-ioann.ru/firmware/v4.bin ../smarthome.tsar-ioann.ru/firmware/v6.bin
+
+import sys
+import gzip
+import zlib
+import struct
+import hashlib
+
+MAGIC = b'SHPATCH1'
+
+BLOCK_SIZE = 8           # matches are searched by blocks of this size
+MIN_MATCH_LENGTH = 12    # shorter matches cost more in control record than they save
+MAX_CANDIDATES = 64      # positions of block in old image which are checked
+
+
+def find_matches(old, new):
+    index = {}
+    for i in range(len(old) - BLOCK_SIZE + 1):
+        index.setdefault(old[i:i + BLOCK_SIZE], []).append(i)
+
+    matches = []  # (position in new, position in old, length)
+    i = 0
+    while i + BLOCK_SIZE <= len(new):
+        best_pos, best_len = None, 0
+        for candidate in index.get(new[i:i + BLOCK_SIZE], [])[:MAX_CANDIDATES]:
+            length = BLOCK_SIZE
+            while i + length < len(new) and candidate + length < len(old) and new[i + length] == old[candidate + length]:
+                length += 1
+            if length > best_len:
+                best_pos, best_len = candidate, length
+        if best_len >= MIN_MATCH_LENGTH:
+            matches.append((i, best_pos, best_len))
+            i += best_len
+        else:
+            i += 1
+    return matches
+
+
+def make_patch(old, new):
+    out = bytearray(MAGIC)
+    out += struct.pack('>II', len(old), len(new))
+
+    def record(seek, diff, extra):
+        out.extend(struct.pack('>iII', seek, len(diff), len(extra)))
+        out.extend(diff)
+        out.extend(extra)
+
+    new_pos, old_pos = 0, 0
+    for match_new, match_old, length in find_matches(old, new) + [(len(new), old_pos, 0)]:
+        gap = new[new_pos:match_new]
+        # Code between matches usually differs from old one only in shifted addresses, so bytewise
+        # difference is mostly zeros and compresses much better than the bytes themselves
+        if gap and old_pos + len(gap) <= len(old) \
+                and sum(1 for k in range(len(gap)) if gap[k] == old[old_pos + k]) * 2 >= len(gap):
+            record(0, bytes((gap[k] - old[old_pos + k]) & 0xFF for k in range(len(gap))), b'')
+            old_pos += len(gap)
+        elif gap:
+            record(0, b'', gap)
+        if length > 0:
+            record(match_old - old_pos, bytes(length), b'')
+            old_pos = match_old + length
+        new_pos = match_new + length
+
+    return gzip.compress(bytes(out), 9, mtime=0)  # same input gives same patch and hash
+
+
+def apply_patch(old, patch):
+    data = gzip.decompress(patch)
+    assert data[:len(MAGIC)] == MAGIC
+    old_size, new_size = struct.unpack('>II', data[8:16])
+    assert old_size == len(old)
+    pos, old_pos, new = 16, 0, bytearray()
+    while len(new) < new_size:
+        seek, diff_len, extra_len = struct.unpack('>iII', data[pos:pos + 12])
+        pos += 12
+        old_pos += seek
+        new += bytes((data[pos + k] + old[old_pos + k]) & 0xFF for k in range(diff_len))
+        pos += diff_len
+        old_pos += diff_len
+        new += data[pos:pos + extra_len]
+        pos += extra_len
+    return bytes(new)
+
+
+def benchmark(paths):
+    images = [(path, open(path, 'rb').read()) for path in paths]
+    print('%-40s %10s %10s %10s %8s' % ('download', 'raw', 'gzip', 'patch', 'saved'))
+    for path, image in images:
+        print('%-40s %10d %10d %10s %8s' % ('full ' + path.split('/')[-1], len(image), len(zlib.compress(image, 9)), '-', '-'))
+    for old_path, old in images:
+        for new_path, new in images:
+            if old_path == new_path:
+                continue
+            patch = make_patch(old, new)
+            assert apply_patch(old, patch) == new
+            name = '%s -> %s' % (old_path.split('/')[-1], new_path.split('/')[-1])
+            print('%-40s %10d %10d %10d %7.1f%%' % (name, len(new), len(zlib.compress(new, 9)), len(patch), 100.0 - 100.0 * len(patch) / len(new)))
+
+
+if __name__ == '__main__':
+    if len(sys.argv) >= 3 and sys.argv[1] == '--benchmark':
+        benchmark(sys.argv[2:])
+        sys.exit(0)
+    if len(sys.argv) != 4:
+        print('Usage: %s OLD.bin NEW.bin OUT.patch\n       %s --benchmark IMAGE.bin...' % (sys.argv[0], sys.argv[0]))
+        sys.exit(1)
+
+    old = open(sys.argv[1], 'rb').read()
+    new = open(sys.argv[2], 'rb').read()
+    patch = make_patch(old, new)
+    assert apply_patch(old, patch) == new
+    open(sys.argv[3], 'wb').write(patch)
+    print('"patches": [{"from_sha256": "%s", "file": "firmware/%s", "sha256": "%s"}]' % (
+        hashlib.sha256(old).hexdigest(), sys.argv[3].split('/')[-1], hashlib.sha256(patch).hexdigest()))
+    print('Patch size: %d bytes, full image: %d bytes' % (len(patch), len(new)))